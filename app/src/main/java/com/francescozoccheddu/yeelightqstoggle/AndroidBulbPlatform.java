@@ -0,0 +1,52 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+// Listeners run on the looper of the thread that started the operation, sockets go through the WiFi network
+final class AndroidBulbPlatform extends BulbPlatform {
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public Executor getCallbackExecutor() {
+        return new Handler(Looper.myLooper())::post;
+    }
+
+    @Override
+    public Executor getMainExecutor() {
+        return mainHandler::post;
+    }
+
+    @Override
+    public void bindSocket(Socket socket) throws IOException {
+        ConnectivityMonitor.getInstance().bindSocket(socket);
+    }
+
+    @Override
+    public String getNetworkKey() {
+        return ConnectivityMonitor.getInstance().getProfileKey();
+    }
+
+    @Override
+    public List<Subnet> getSubnets() {
+        final LinkProperties linkProperties = ConnectivityMonitor.getInstance().getLinkProperties();
+        if (linkProperties == null) {
+            return null;
+        }
+        final List<Subnet> subnets = new ArrayList<>();
+        for (LinkAddress linkAddress : linkProperties.getLinkAddresses()) {
+            subnets.add(new Subnet(linkAddress.getAddress(), linkAddress.getPrefixLength()));
+        }
+        return subnets;
+    }
+
+}
@@ -0,0 +1,127 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+
+public final class BulbAnnounceListener {
+
+    private static final BulbAnnounceListener instance = new BulbAnnounceListener();
+
+    public static BulbAnnounceListener getInstance() {
+        return instance;
+    }
+
+    private DatagramChannel channel;
+    private WifiManager.MulticastLock multicastLock;
+
+    private BulbAnnounceListener() {
+    }
+
+    public synchronized void start(Context context) {
+        if (isListening()) {
+            return;
+        }
+        stop();
+        final BulbCache cache = BulbCache.getInstance(context);
+        final DatagramChannel channel;
+        try {
+            channel = DatagramChannel.open(StandardProtocolFamily.INET);
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(Bulb.Discoverer.UDP_PORT));
+            channel.configureBlocking(false);
+            if (joinGroup(channel) == 0) {
+                channel.close();
+                Log.d("BulbAnnounceListener", "No multicast interface");
+                return;
+            }
+        } catch (IOException e) {
+            Log.d("BulbAnnounceListener", "Unable to join multicast group");
+            return;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(1024);
+        final SsdpMessage ssdp = new SsdpMessage();
+        final BulbEventLoop.ChannelHandler handler = key -> {
+            try {
+                while (channel.receive(buffer) != null) {
+                    if (ssdp.parse(buffer.array(), 0, buffer.position())) {
+                        final Bulb bulb = Bulb.fromSsdp(ssdp);
+                        BulbStateTracker.getInstance().update(bulb, ssdp.toState());
+                        cache.refresh(bulb, ssdp.getMaxAge());
+                    }
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                close(channel);
+            }
+        };
+        final BulbEventLoop loop = BulbEventLoop.getInstance();
+        loop.execute(() -> {
+            try {
+                loop.register(channel, SelectionKey.OP_READ, handler);
+            } catch (IOException e) {
+                close(channel);
+            }
+        });
+        this.channel = channel;
+
+        final WifiManager wifiManager = (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+        if (wifiManager != null) {
+            multicastLock = wifiManager.createMulticastLock("BulbAnnounceListener");
+            multicastLock.setReferenceCounted(false);
+            multicastLock.acquire();
+        }
+        Log.d("BulbAnnounceListener", "Listening");
+    }
+
+    // Joins the SSDP group on every interface that can receive IPv4 multicast
+    private static int joinGroup(DatagramChannel channel) throws IOException {
+        final InetAddress group = InetAddress.getByName(Bulb.Discoverer.UDP_HOST);
+        int joined = 0;
+        for (NetworkInterface networkInterface : Bulb.Discoverer.getMulticastInterfaces()) {
+            try {
+                channel.join(group, networkInterface);
+                joined++;
+            } catch (IOException e) {
+                Log.d("BulbAnnounceListener", "Unable to join multicast group on " + networkInterface.getName());
+            }
+        }
+        return joined;
+    }
+
+    private static void close(DatagramChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    public synchronized void stop() {
+        if (channel != null) {
+            final DatagramChannel channel = this.channel;
+            BulbEventLoop.getInstance().execute(() -> close(channel));
+            this.channel = null;
+            Log.d("BulbAnnounceListener", "Stopped");
+        }
+        if (multicastLock != null) {
+            multicastLock.release();
+            multicastLock = null;
+        }
+    }
+
+    public synchronized boolean isListening() {
+        return channel != null && channel.isOpen();
+    }
+
+}
@@ -0,0 +1,154 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public final class BulbCache {
+
+    public static final String PREFERENCES_NAME = "BulbCache";
+
+    private static final String ENTRY_PREFIX = "bulb_";
+    // Before profiles the latest bulb was shared by all networks
+    private static final String LEGACY_LATEST_KEY = "latest";
+
+    private static BulbCache instance;
+
+    public static synchronized BulbCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new BulbCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private static final class Entry {
+
+        private final Bulb bulb;
+        private final long expiry;
+
+        private Entry(Bulb bulb, long expiry) {
+            this.bulb = bulb;
+            this.expiry = expiry;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiry;
+        }
+
+        private String serialize() {
+            return bulb.getAddress() + "|" + expiry;
+        }
+
+        private static Entry deserialize(String key, String value) {
+            final int separator = value.lastIndexOf('|');
+            if (separator != -1) {
+                final Bulb address = Bulb.fromAddress(value.substring(0, separator));
+                if (address != null) {
+                    try {
+                        final long expiry = Long.parseLong(value.substring(separator + 1));
+                        return new Entry(new Bulb(address.getInet(), address.getPort(), key), expiry);
+                    } catch (NumberFormatException e) {
+                    }
+                }
+            }
+            return null;
+        }
+
+    }
+
+    private final SharedPreferences preferences;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final BulbProfiles profiles;
+
+    private BulbCache(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        final long now = System.currentTimeMillis();
+        for (Map.Entry<String, ?> pref : preferences.getAll().entrySet()) {
+            if (pref.getKey().startsWith(ENTRY_PREFIX) && pref.getValue() instanceof String) {
+                final String key = pref.getKey().substring(ENTRY_PREFIX.length());
+                final Entry entry = Entry.deserialize(key, (String) pref.getValue());
+                if (entry != null && !entry.isExpired(now)) {
+                    entries.put(key, entry);
+                }
+            }
+        }
+        profiles = BulbProfiles.getInstance(context);
+        final String legacyLatest = preferences.getString(LEGACY_LATEST_KEY, null);
+        if (legacyLatest != null) {
+            final BulbProfiles.Profile profile = profiles.getCurrent();
+            if (profile.getLatest() == null) {
+                profiles.setLatest(profile, legacyLatest);
+            }
+            preferences.edit().remove(LEGACY_LATEST_KEY).apply();
+        }
+    }
+
+    private static String getKey(Bulb bulb) {
+        return bulb.getId() != null ? bulb.getId() : bulb.getAddress();
+    }
+
+    public synchronized void put(Bulb bulb, int maxAge) {
+        store(bulb, maxAge, true);
+    }
+
+    // Stores a bulb that was not asked for, so it never becomes the dynamic target
+    public synchronized void remember(Bulb bulb, int maxAge) {
+        store(bulb, maxAge, false);
+    }
+
+    public synchronized void refresh(Bulb bulb, int maxAge) {
+        store(bulb, maxAge, profiles.getCurrent().getLatest() == null);
+    }
+
+    private void store(Bulb bulb, int maxAge, boolean latest) {
+        final String key = getKey(bulb);
+        final Entry entry = new Entry(bulb, System.currentTimeMillis() + maxAge * 1000L);
+        entries.put(key, entry);
+        preferences.edit().putString(ENTRY_PREFIX + key, entry.serialize()).apply();
+        if (latest) {
+            profiles.setLatest(profiles.getCurrent(), key);
+        }
+    }
+
+    public synchronized Bulb get(String id) {
+        final Entry entry = entries.get(id);
+        if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+            remove(id);
+            return null;
+        }
+        return entry != null ? entry.bulb : null;
+    }
+
+    // Bulbs are equal by address, so this recovers the id of a bulb known only by its address
+    public synchronized Bulb getByAddress(Bulb bulb) {
+        final long now = System.currentTimeMillis();
+        for (Entry entry : entries.values()) {
+            if (entry.bulb.equals(bulb) && !entry.isExpired(now)) {
+                return entry.bulb;
+            }
+        }
+        return null;
+    }
+
+    // The latest bulb seen on the current network
+    public synchronized Bulb getLatest() {
+        final String latestKey = profiles.getCurrent().getLatest();
+        return latestKey != null ? get(latestKey) : null;
+    }
+
+    public synchronized void invalidate(Bulb bulb) {
+        remove(getKey(bulb));
+    }
+
+    private void remove(String key) {
+        entries.remove(key);
+        preferences.edit().remove(ENTRY_PREFIX + key).apply();
+        final BulbProfiles.Profile profile = profiles.getCurrent();
+        if (key.equals(profile.getLatest())) {
+            profiles.setLatest(profile, null);
+        }
+    }
+
+}
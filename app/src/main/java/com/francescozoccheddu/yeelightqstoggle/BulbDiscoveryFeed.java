@@ -0,0 +1,71 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Coalesces discovered bulbs into at most one listener call per frame, whatever the response rate
+public final class BulbDiscoveryFeed implements Choreographer.FrameCallback {
+
+    public interface Listener {
+        void onBulbsChanged(List<Bulb> bulbs);
+    }
+
+    public static final int MAX_BULBS = 64;
+
+    private final Listener listener;
+    // Keyed by bulb id, or by address for bulbs that do not send one; only touched by the main thread
+    private final Map<String, Bulb> bulbs = new LinkedHashMap<>();
+    private final Map<String, Bulb> pending = new LinkedHashMap<>();
+    private boolean scheduled = false;
+
+    public BulbDiscoveryFeed(Listener listener) {
+        this.listener = listener;
+    }
+
+    private static String getKey(Bulb bulb) {
+        return bulb.getId() != null ? bulb.getId() : bulb.getAddress();
+    }
+
+    public void offer(Bulb bulb) {
+        final String key = getKey(bulb);
+        if (bulb.equals(pending.get(key)) || !pending.containsKey(key) && bulb.equals(bulbs.get(key))) {
+            return;
+        }
+        if (!bulbs.containsKey(key) && !pending.containsKey(key) && bulbs.size() + pending.size() >= MAX_BULBS) {
+            Log.d("BulbDiscoveryFeed", "Dropping bulb '" + bulb + "', feed is full");
+            return;
+        }
+        pending.put(key, bulb);
+        if (!scheduled) {
+            scheduled = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        scheduled = false;
+        if (pending.isEmpty()) {
+            return;
+        }
+        // Updated bulbs keep their position, new ones are appended
+        bulbs.putAll(pending);
+        pending.clear();
+        listener.onBulbsChanged(Collections.unmodifiableList(new ArrayList<>(bulbs.values())));
+    }
+
+    public void cancel() {
+        if (scheduled) {
+            scheduled = false;
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+        pending.clear();
+    }
+
+}
@@ -0,0 +1,148 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Resolves bulb host names in background, so that neither a tap nor typing ever waits for DNS
+public final class BulbNameResolver {
+
+    private static final int MAX_ENTRIES = 32;
+    private static final long TTL = TimeUnit.MINUTES.toNanos(5);
+    // Failures are remembered briefly, so that a typo does not trigger a lookup per keystroke
+    private static final long NEGATIVE_TTL = TimeUnit.SECONDS.toNanos(10);
+
+    private static BulbNameResolver instance;
+
+    public static synchronized BulbNameResolver getInstance() {
+        if (instance == null) {
+            instance = new BulbNameResolver();
+        }
+        return instance;
+    }
+
+    private static final class Resolution {
+
+        // Null if the lookup failed
+        private final InetAddress inet;
+        private final long expiry;
+
+        private Resolution(InetAddress inet, long expiry) {
+            this.inet = inet;
+            this.expiry = expiry;
+        }
+
+    }
+
+    private final Map<String, Resolution> entries = new LinkedHashMap<String, Resolution>(MAX_ENTRIES, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Resolution> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+
+    };
+    private final Map<String, CompletableFuture<InetAddress>> lookups = new HashMap<>();
+    private final Executor executor = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "BulbNameResolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private BulbNameResolver() {
+    }
+
+    // Completes with null if the address is invalid or the host name cannot be resolved
+    public CompletableFuture<Bulb> resolve(String address) {
+        final BulbAddress parsed = BulbAddress.parse(address);
+        if (parsed == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (parsed.isLiteral()) {
+            return CompletableFuture.completedFuture(new Bulb(parsed.toInetAddress(), parsed.getPort()));
+        }
+        return lookup(parsed.getHost()).thenApply(inet -> inet != null ? new Bulb(inet, parsed.getPort()) : null);
+    }
+
+    // Completes with null if any of the addresses cannot be resolved
+    public CompletableFuture<List<Bulb>> resolve(List<String> addresses) {
+        final List<CompletableFuture<Bulb>> futures = new ArrayList<>(addresses.size());
+        for (String address : addresses) {
+            futures.add(resolve(address));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(result -> {
+            final List<Bulb> bulbs = new ArrayList<>(futures.size());
+            for (CompletableFuture<Bulb> future : futures) {
+                final Bulb bulb = future.join();
+                if (bulb == null) {
+                    return null;
+                }
+                bulbs.add(bulb);
+            }
+            return bulbs;
+        });
+    }
+
+    // Never blocks; null unless every address is a literal or a fresh cached host name
+    public List<Bulb> getCached(List<String> addresses) {
+        final List<Bulb> bulbs = new ArrayList<>(addresses.size());
+        for (String address : addresses) {
+            final BulbAddress parsed = BulbAddress.parse(address);
+            if (parsed == null) {
+                return null;
+            }
+            final InetAddress inet = parsed.isLiteral() ? parsed.toInetAddress() : getCached(parsed.getHost());
+            if (inet == null) {
+                return null;
+            }
+            bulbs.add(new Bulb(inet, parsed.getPort()));
+        }
+        return bulbs;
+    }
+
+    private synchronized InetAddress getCached(String host) {
+        final Resolution resolution = entries.get(host.toLowerCase());
+        return resolution != null && resolution.expiry - System.nanoTime() > 0 ? resolution.inet : null;
+    }
+
+    private synchronized CompletableFuture<InetAddress> lookup(String host) {
+        final String key = host.toLowerCase();
+        final Resolution resolution = entries.get(key);
+        if (resolution != null && resolution.expiry - System.nanoTime() > 0) {
+            return CompletableFuture.completedFuture(resolution.inet);
+        }
+        // Concurrent requests for the same name share a single lookup
+        CompletableFuture<InetAddress> future = lookups.get(key);
+        if (future == null) {
+            final CompletableFuture<InetAddress> lookup = new CompletableFuture<>();
+            lookups.put(key, lookup);
+            executor.execute(() -> {
+                InetAddress inet;
+                try {
+                    inet = InetAddress.getByName(host);
+                } catch (UnknownHostException | SecurityException e) {
+                    Log.d("BulbNameResolver", "Cannot resolve '" + host + "'");
+                    inet = null;
+                }
+                synchronized (this) {
+                    entries.put(key, new Resolution(inet, System.nanoTime() + (inet != null ? TTL : NEGATIVE_TTL)));
+                    lookups.remove(key);
+                }
+                lookup.complete(inet);
+            });
+            future = lookup;
+        }
+        return future;
+    }
+
+}
@@ -0,0 +1,96 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Per-network state, so that moving between networks with different bulbs does not mix them up
+// The profile is selected once per network transition, the tap path only reads a field
+public final class BulbProfiles {
+
+    public static final String PREFERENCES_NAME = "BulbProfiles";
+
+    private static final String LATEST_PREFIX = "latest_";
+
+    private static BulbProfiles instance;
+
+    public static synchronized BulbProfiles getInstance(Context context) {
+        if (instance == null) {
+            instance = new BulbProfiles(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    public static final class Profile {
+
+        private final String key;
+        // Cache key of the bulb the dynamic tiles target on this network
+        private volatile String latest;
+
+        private Profile(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getLatest() {
+            return latest;
+        }
+
+        @Override
+        public String toString() {
+            return key.isEmpty() ? "<unknown network>" : key;
+        }
+
+    }
+
+    private final SharedPreferences preferences;
+    private final Map<String, Profile> profiles = new HashMap<>();
+    private volatile Profile current;
+
+    private BulbProfiles(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> pref : preferences.getAll().entrySet()) {
+            if (pref.getKey().startsWith(LATEST_PREFIX) && pref.getValue() instanceof String) {
+                getProfile(pref.getKey().substring(LATEST_PREFIX.length())).latest = (String) pref.getValue();
+            }
+        }
+        current = getProfile(ConnectivityMonitor.getInstance().getProfileKey());
+    }
+
+    private Profile getProfile(String key) {
+        Profile profile = profiles.get(key);
+        if (profile == null) {
+            profile = new Profile(key);
+            profiles.put(key, profile);
+        }
+        return profile;
+    }
+
+    public synchronized void select(String key) {
+        current = getProfile(key);
+        Log.d("BulbProfiles", "Selected profile '" + current + "'");
+    }
+
+    public Profile getCurrent() {
+        return current;
+    }
+
+    synchronized void setLatest(Profile profile, String latest) {
+        if (latest == null ? profile.latest == null : latest.equals(profile.latest)) {
+            return;
+        }
+        profile.latest = latest;
+        if (latest != null) {
+            preferences.edit().putString(LATEST_PREFIX + profile.key, latest).apply();
+        } else {
+            preferences.edit().remove(LATEST_PREFIX + profile.key).apply();
+        }
+    }
+
+}
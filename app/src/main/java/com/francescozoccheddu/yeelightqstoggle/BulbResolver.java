@@ -0,0 +1,203 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Finds a reachable bulb by racing the connection to the known address against discovery ("happy eyeballs")
+// All the methods must be called from the main thread, and listeners are called on it
+public final class BulbResolver {
+
+    public interface Listener {
+        // The bulb is null if nothing could be reached
+        void onResolved(Bulb bulb);
+    }
+
+    // A healthy bulb on the LAN accepts the connection well within this
+    private static final int DISCOVERY_STAGGER = 250;
+    private static final int DISCOVERY_TIMEOUT = 5000;
+
+    private static Bulb.Discoverer sharedDiscoverer;
+    private static final List<Listener> discoveryListeners = new ArrayList<>();
+
+    private BulbResolver() {
+    }
+
+    private static final class Race {
+
+        private final Context context;
+        private final Bulb known;
+        private final boolean anyBulb;
+        private final Listener listener;
+        private final Handler handler = new Handler(Looper.myLooper());
+        private final Runnable stagger = this::startDiscovery;
+        // Only set while looking for a specific bulb, since the discovery for any bulb is shared
+        private Bulb.Discoverer discoverer;
+        private boolean done = false;
+        private boolean discovering = false;
+        private boolean connectFailed = false;
+        private boolean discoveryFailed = false;
+
+        private Race(Context context, Bulb known, boolean anyBulb, Listener listener) {
+            this.context = context;
+            this.known = known;
+            this.anyBulb = anyBulb;
+            this.listener = listener;
+        }
+
+        private void start() {
+            if (known == null) {
+                connectFailed = true;
+                startDiscovery();
+                return;
+            }
+            BulbConnectionPool.getInstance().connect(known).whenComplete((result, exception) -> handler.post(() -> {
+                if (exception == null) {
+                    finish(known);
+                } else {
+                    Log.d("BulbResolver", "Bulb '" + known + "' unreachable");
+                    connectFailed = true;
+                    BulbCache.getInstance(context).invalidate(known);
+                    if (discoveryFailed || !canDiscover()) {
+                        finish(null);
+                    } else {
+                        startDiscovery();
+                    }
+                }
+            }));
+            if (canDiscover()) {
+                handler.postDelayed(stagger, DISCOVERY_STAGGER);
+            }
+        }
+
+        // Without an id there is no telling whether a discovered bulb is the one we are looking for
+        private boolean canDiscover() {
+            return anyBulb || known.getId() != null;
+        }
+
+        private void startDiscovery() {
+            handler.removeCallbacks(stagger);
+            if (done || discovering) {
+                return;
+            }
+            discovering = true;
+            final Listener listener = bulb -> {
+                if (bulb != null) {
+                    if (known != null && !bulb.equals(known)) {
+                        Log.d("BulbResolver", "Bulb '" + known + "' moved to '" + bulb + "'");
+                    }
+                    finish(bulb);
+                } else {
+                    discoveryFailed = true;
+                    if (connectFailed) {
+                        finish(null);
+                    }
+                }
+            };
+            if (anyBulb) {
+                discover(context, DISCOVERY_TIMEOUT, listener);
+            } else {
+                discoverer = find(context, known.getId(), DISCOVERY_TIMEOUT, listener);
+            }
+        }
+
+        private void finish(Bulb bulb) {
+            if (done) {
+                return;
+            }
+            done = true;
+            handler.removeCallbacks(stagger);
+            if (discoverer != null) {
+                discoverer.stopSearch();
+            }
+            listener.onResolved(bulb);
+        }
+
+    }
+
+    // Connects to the known bulb right away and, if it has not answered after a short stagger or as soon as it fails,
+    // discovers in parallel; the first one to succeed wins. A null known bulb means discovery only.
+    // If anyBulb is false a discovered bulb is accepted only if its id matches the known one.
+    public static void resolve(Context context, Bulb known, boolean anyBulb, Listener listener) {
+        if (known == null && !anyBulb) {
+            throw new IllegalArgumentException("Nothing to resolve");
+        }
+        new Race(context.getApplicationContext(), known, anyBulb, listener).start();
+    }
+
+    // Every caller looking for any bulb joins the running discovery instead of starting another
+    public static void discover(Context context, int timeout, Listener listener) {
+        discoveryListeners.add(listener);
+        if (sharedDiscoverer != null && sharedDiscoverer.isSearching()) {
+            Log.d("BulbResolver", "Joining running discoverer");
+            return;
+        }
+        Log.d("BulbResolver", "Creating new discoverer");
+        final BulbCache cache = BulbCache.getInstance(context);
+        sharedDiscoverer = new Bulb.Discoverer(timeout, 1) {
+
+            boolean done = false;
+
+            @Override
+            public void onDiscover(Bulb bulb, int maxAge) {
+                if (!done) {
+                    done = true;
+                    cache.put(bulb, maxAge);
+                    stopSearch();
+                    dispatchDiscovery(bulb);
+                }
+            }
+
+            @Override
+            public void onInterrupted() {
+                if (!done) {
+                    done = true;
+                    dispatchDiscovery(null);
+                }
+            }
+
+        };
+    }
+
+    // Waits for the bulb with the given id, however many other bulbs answer first; they are cached too,
+    // but since they were not asked for none of them becomes the target of the dynamic tiles
+    private static Bulb.Discoverer find(Context context, String id, int timeout, Listener listener) {
+        final BulbCache cache = BulbCache.getInstance(context);
+        return new Bulb.Discoverer(timeout, 1, bulb -> id.equals(bulb.getId())) {
+
+            boolean done = false;
+
+            @Override
+            public void onDiscover(Bulb bulb, int maxAge) {
+                cache.remember(bulb, maxAge);
+                if (!done && id.equals(bulb.getId())) {
+                    done = true;
+                    stopSearch();
+                    listener.onResolved(bulb);
+                }
+            }
+
+            @Override
+            public void onInterrupted() {
+                if (!done) {
+                    done = true;
+                    listener.onResolved(null);
+                }
+            }
+
+        };
+    }
+
+    private static void dispatchDiscovery(Bulb bulb) {
+        final List<Listener> listeners = new ArrayList<>(discoveryListeners);
+        discoveryListeners.clear();
+        for (Listener listener : listeners) {
+            listener.onResolved(bulb);
+        }
+    }
+
+}
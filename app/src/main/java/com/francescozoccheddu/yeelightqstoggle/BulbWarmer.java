@@ -0,0 +1,100 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+// Keeps the bulbs warm for a while when a tap is likely: after the screen turns on, since active tiles are not told
+// when the panel opens, and after the user touched a tile, since more taps usually follow. The pool keeps its
+// connections, the target bulbs are connected ahead of the next command and, after a tap, the announce listener keeps
+// the cache fresh. Everything is released when the time is up or the network changes, and merely waking a tile
+// never starts any of it. Must be used from the main thread.
+public final class BulbWarmer {
+
+    private static final int WARM_TIMEOUT = 60000;
+
+    private static final BulbWarmer instance = new BulbWarmer();
+
+    public static BulbWarmer getInstance() {
+        return instance;
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable releaseRunnable = this::release;
+    private final BroadcastReceiver screenReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            warmTiles(context);
+        }
+    };
+    private boolean warm = false;
+    private boolean started = false;
+
+    private BulbWarmer() {
+    }
+
+    // Watches the screen for the whole process lifetime
+    public void start(Context context) {
+        if (started) {
+            return;
+        }
+        started = true;
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_USER_PRESENT);
+        context.getApplicationContext().registerReceiver(screenReceiver, filter);
+    }
+
+    // Announcements are left to taps: they cost a multicast lock, and unused slots are dynamic by default
+    private void warmTiles(Context context) {
+        final Set<Bulb> bulbs = new LinkedHashSet<>();
+        for (int slot = 0; slot < ToggleTileService.getSlotCount(); slot++) {
+            bulbs.addAll(ToggleTileService.getTargets(context, slot));
+        }
+        warm(context, bulbs, false);
+    }
+
+    // Starts or extends the warm period; announcements are only listened to for dynamic tiles
+    public void warm(Context context, Collection<Bulb> bulbs, boolean announcements) {
+        if (!ConnectivityMonitor.getInstance().isConnected()) {
+            return;
+        }
+        if (!warm) {
+            warm = true;
+            Log.d("BulbWarmer", "Warming up");
+        }
+        final BulbConnectionPool pool = BulbConnectionPool.getInstance();
+        pool.setKeepAlive(true);
+        for (Bulb bulb : bulbs) {
+            pool.connect(bulb);
+        }
+        if (announcements) {
+            BulbAnnounceListener.getInstance().start(context);
+        }
+        handler.removeCallbacks(releaseRunnable);
+        handler.postDelayed(releaseRunnable, WARM_TIMEOUT);
+    }
+
+    public void release() {
+        handler.removeCallbacks(releaseRunnable);
+        if (!warm) {
+            return;
+        }
+        warm = false;
+        BulbConnectionPool.getInstance().setKeepAlive(false);
+        BulbAnnounceListener.getInstance().stop();
+        Log.d("BulbWarmer", "Released");
+    }
+
+    public boolean isWarm() {
+        return warm;
+    }
+
+}
@@ -0,0 +1,241 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.net.wifi.SupplicantState;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.Socket;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public final class ConnectivityMonitor {
+
+    public interface ConnectivityListener {
+        void onConnectivityChanged(boolean connected);
+    }
+
+    // WiFi tends to flap while roaming or waking up, so we wait for it to settle before reporting a change
+    private static final int DEBOUNCE_MILLIS = 1000;
+
+    private static final ConnectivityMonitor instance = new ConnectivityMonitor();
+
+    public static ConnectivityMonitor getInstance() {
+        return instance;
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final CopyOnWriteArrayList<ConnectivityListener> listeners = new CopyOnWriteArrayList<>();
+    private final Runnable evaluateRunnable = this::evaluate;
+    private Context context;
+    // Only touched on the main thread
+    private Network wifiNetwork;
+    private volatile Network network;
+    private volatile boolean connected = false;
+    private volatile String profileKey = "";
+    private volatile LinkProperties linkProperties;
+
+    private final ConnectivityManager.NetworkCallback networkCallback = new ConnectivityManager.NetworkCallback() {
+
+        @Override
+        public void onAvailable(Network network) {
+            // Coming back is reported right away, which also cancels a pending disconnection
+            handler.post(() -> {
+                wifiNetwork = network;
+                refresh();
+            });
+        }
+
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities networkCapabilities) {
+            handler.post(() -> {
+                if (network.equals(wifiNetwork)) {
+                    scheduleEvaluate();
+                }
+            });
+        }
+
+        @Override
+        public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
+            handler.post(() -> {
+                if (network.equals(wifiNetwork)) {
+                    scheduleEvaluate();
+                }
+            });
+        }
+
+        @Override
+        public void onLost(Network network) {
+            handler.post(() -> {
+                if (network.equals(wifiNetwork)) {
+                    wifiNetwork = null;
+                    scheduleEvaluate();
+                }
+            });
+        }
+
+    };
+
+    private ConnectivityMonitor() {
+    }
+
+    // Must be called on the main thread. The current network is read right away, since the callback only reports it
+    // later: a cold start that handles a tap in the same round would otherwise see itself disconnected.
+    public synchronized void start(Context context) {
+        if (this.context != null) {
+            return;
+        }
+        final ConnectivityManager connectivityManager = (ConnectivityManager) context.getApplicationContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) {
+            Log.d("ConnectivityMonitor", "No connectivity service");
+            return;
+        }
+        this.context = context.getApplicationContext();
+        connectivityManager.registerNetworkCallback(new NetworkRequest.Builder()
+                .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+                .build(), networkCallback);
+        Log.d("ConnectivityMonitor", "Monitoring");
+        wifiNetwork = findWifiNetwork(connectivityManager);
+        refresh();
+    }
+
+    private static Network findWifiNetwork(ConnectivityManager connectivityManager) {
+        for (Network network : connectivityManager.getAllNetworks()) {
+            final NetworkCapabilities capabilities = connectivityManager.getNetworkCapabilities(network);
+            if (capabilities != null && capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) {
+                return network;
+            }
+        }
+        return null;
+    }
+
+    public void addListener(ConnectivityListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(ConnectivityListener listener) {
+        listeners.remove(listener);
+    }
+
+    // True if connected to a WiFi network matching the settings
+    public boolean isConnected() {
+        return connected;
+    }
+
+    // Identifies the current WiFi network across reconnections: its SSID, or its BSSID if the SSID is hidden
+    public String getProfileKey() {
+        return profileKey;
+    }
+
+    // Reads the profile key of the WiFi network the device is on right now, for callers that cannot wait for the monitor
+    public static String readProfileKey(Context context) {
+        return getProfileKey(getWifiInfo(context.getApplicationContext()));
+    }
+
+    // The WiFi network bulb sockets should be bound to, or null if not connected
+    public Network getNetwork() {
+        return network;
+    }
+
+    // Addresses and routes of the current WiFi network, or null if not connected
+    public LinkProperties getLinkProperties() {
+        return linkProperties;
+    }
+
+    public void bindSocket(Socket socket) throws IOException {
+        final Network network = this.network;
+        if (network != null) {
+            network.bindSocket(socket);
+        }
+    }
+
+    public void bindSocket(DatagramSocket socket) throws IOException {
+        final Network network = this.network;
+        if (network != null) {
+            network.bindSocket(socket);
+        }
+    }
+
+    // Re-evaluates the state right away, e.g. after the settings changed; must be called on the main thread
+    public void refresh() {
+        handler.removeCallbacks(evaluateRunnable);
+        evaluate();
+    }
+
+    private void scheduleEvaluate() {
+        handler.removeCallbacks(evaluateRunnable);
+        handler.postDelayed(evaluateRunnable, DEBOUNCE_MILLIS);
+    }
+
+    private void evaluate() {
+        final Network wifiNetwork = this.wifiNetwork;
+        final WifiInfo wifiInfo = wifiNetwork != null && context != null ? getWifiInfo(context) : null;
+        final boolean connected = wifiNetwork != null && context != null && isExpectedNetwork(context, wifiInfo);
+        final String profileKey = getProfileKey(wifiInfo);
+        network = connected ? wifiNetwork : null;
+        linkProperties = connected ? getLinkProperties(context, wifiNetwork) : null;
+        final boolean profileChanged = !profileKey.equals(this.profileKey);
+        if (profileChanged && context != null) {
+            this.profileKey = profileKey;
+            BulbProfiles.getInstance(context).select(profileKey);
+        }
+        if (connected != this.connected || profileChanged && connected) {
+            this.connected = connected;
+            Log.d("ConnectivityMonitor", "State " + (connected ? "connected" : "disconnected"));
+            for (ConnectivityListener listener : listeners) {
+                listener.onConnectivityChanged(connected);
+            }
+        }
+    }
+
+    private static LinkProperties getLinkProperties(Context context, Network network) {
+        final ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        return connectivityManager != null ? connectivityManager.getLinkProperties(network) : null;
+    }
+
+    private static WifiInfo getWifiInfo(Context context) {
+        final WifiManager wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+        if (wifiManager != null) {
+            final WifiInfo wifiInfo = wifiManager.getConnectionInfo();
+            if (wifiInfo != null && wifiInfo.getSupplicantState() == SupplicantState.COMPLETED) {
+                return wifiInfo;
+            }
+        }
+        return null;
+    }
+
+    private static String getProfileKey(WifiInfo wifiInfo) {
+        if (wifiInfo == null) {
+            return "";
+        }
+        final String ssid = SSIDUtils.getSSID(wifiInfo);
+        if (ssid != null) {
+            return ssid;
+        }
+        // Without location access both are redacted, the BSSID to this placeholder
+        final String bssid = wifiInfo.getBSSID();
+        return bssid != null && !bssid.equals("02:00:00:00:00:00") ? bssid : "";
+    }
+
+    private static boolean isExpectedNetwork(Context context, WifiInfo wifiInfo) {
+        final Settings settings = Settings.getGlobalSettings(context);
+        if (!settings.isWiFiStatic()) {
+            return true;
+        }
+        if (wifiInfo != null) {
+            final String ssid = SSIDUtils.getSSID(wifiInfo);
+            return ssid != null && ssid.equals(settings.getWiFiSSID());
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,169 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.support.v7.app.AlertDialog;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.widget.EditText;
+import android.widget.Toast;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Opened by long-pressing the tile: applies a preset to the tile bulbs in a single round trip
+public class PresetActivity extends AppCompatActivity {
+
+    // Presets are shared by all tiles, the tile that was long-pressed only picks the target bulbs
+    private int slot;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        // A long press opens this without binding the tile, so in a cold process nobody started the monitor yet:
+        // the targets and the warm-up depend on the current network
+        ConnectivityMonitor.getInstance().start(this);
+        slot = ToggleTileService.getSlot(getIntent().getParcelableExtra(Intent.EXTRA_COMPONENT_NAME));
+        // Connects while the user picks a preset, so that applying it costs a single round trip
+        BulbWarmer.getInstance().warm(this, ToggleTileService.getTargets(this, slot), !Settings.getTileSettings(this, slot).isBulbStatic());
+        showPresets();
+    }
+
+    private void showPresets() {
+        final List<BulbPreset> presets = Settings.getGlobalSettings(this).getPresets();
+        final CharSequence[] items = new CharSequence[presets.size() + 1];
+        for (int i = 0; i < presets.size(); i++) {
+            items[i] = presets.get(i).getName();
+        }
+        items[presets.size()] = getString(R.string.presets_save_current);
+        final AlertDialog.Builder builder = new AlertDialog.Builder(this)
+                .setTitle(R.string.presets_title)
+                .setItems(items, (dialog, which) -> {
+                    if (which < presets.size()) {
+                        applyPreset(presets.get(which));
+                        finish();
+                    } else {
+                        saveCurrentState();
+                    }
+                })
+                .setNegativeButton(R.string.presets_settings, (dialog, which) -> {
+                    startActivity(new Intent(this, SettingsActivity.class).putExtra(SettingsActivity.EXTRA_SLOT, slot));
+                    finish();
+                })
+                .setOnCancelListener(dialog -> finish());
+        if (!presets.isEmpty()) {
+            builder.setNeutralButton(R.string.presets_delete, (dialog, which) -> showDeletePresets());
+        }
+        builder.show();
+    }
+
+    private void applyPreset(BulbPreset preset) {
+        final Context context = getApplicationContext();
+        final List<Bulb> bulbs = ToggleTileService.getTargets(this, slot);
+        if (bulbs.isEmpty()) {
+            Toast.makeText(context, R.string.presets_toast_no_bulb, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        Log.d("PresetActivity", "Applying preset '" + preset + "' to " + bulbs);
+        Bulb.sendPreset(bulbs, preset, new Bulb.GroupCommandListener() {
+            @Override
+            public void onBulbCommandSent(Bulb bulb) {
+            }
+
+            @Override
+            public void onBulbSocketException(Bulb bulb, Exception exception) {
+                Log.d("PresetActivity", "Preset failed on '" + bulb + "'");
+            }
+
+            @Override
+            public void onGroupCommandCompleted(int sent, int failed) {
+                if (failed > 0) {
+                    Toast.makeText(context, R.string.presets_toast_failed, Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
+    }
+
+    private void saveCurrentState() {
+        final List<Bulb> bulbs = ToggleTileService.getTargets(this, slot);
+        if (bulbs.isEmpty()) {
+            askPresetName(BulbState.UNKNOWN_STATE);
+            return;
+        }
+        // The tracked state can be stale or already forgotten, so the bulb is asked directly
+        final Bulb bulb = bulbs.get(0);
+        bulb.requestState(new Bulb.ToggleCommandListener() {
+            @Override
+            public void onCommandSent() {
+                askPresetName(BulbStateTracker.getInstance().getState(bulb));
+            }
+
+            @Override
+            public void onSocketException(Exception exception) {
+                Log.d("PresetActivity", "Cannot read the state of '" + bulb + "'");
+                askPresetName(BulbState.UNKNOWN_STATE);
+            }
+        });
+    }
+
+    private void askPresetName(BulbState state) {
+        if (isFinishing()) {
+            return;
+        }
+        if (BulbPreset.fromState(getString(R.string.presets_title), state) == null) {
+            Toast.makeText(this, R.string.presets_toast_state_unknown, Toast.LENGTH_SHORT).show();
+            finish();
+            return;
+        }
+        final EditText etName = new EditText(this);
+        etName.setSingleLine();
+        etName.setHint(R.string.presets_name_hint);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.presets_save_current)
+                .setView(etName)
+                .setPositiveButton(R.string.presets_save, (dialog, which) -> {
+                    final String name = etName.getText().toString().replace("|", "").trim();
+                    if (!name.isEmpty()) {
+                        savePreset(BulbPreset.fromState(name, state));
+                    }
+                    finish();
+                })
+                .setOnCancelListener(dialog -> finish())
+                .show();
+    }
+
+    private void savePreset(BulbPreset preset) {
+        final Settings settings = Settings.getGlobalSettings(this);
+        final List<BulbPreset> presets = new ArrayList<>(settings.getPresets());
+        // Presets are identified by name, so saving with an existing name replaces it
+        presets.remove(preset);
+        presets.add(preset);
+        final Settings.Editor editor = settings.edit();
+        editor.setPresets(presets);
+        editor.apply();
+        Log.d("PresetActivity", "Preset '" + preset + "' saved");
+    }
+
+    private void showDeletePresets() {
+        final Settings settings = Settings.getGlobalSettings(this);
+        final List<BulbPreset> presets = settings.getPresets();
+        final CharSequence[] items = new CharSequence[presets.size()];
+        for (int i = 0; i < presets.size(); i++) {
+            items[i] = presets.get(i).getName();
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.presets_delete)
+                .setItems(items, (dialog, which) -> {
+                    final List<BulbPreset> remaining = new ArrayList<>(presets);
+                    remaining.remove(which);
+                    final Settings.Editor editor = settings.edit();
+                    editor.setPresets(remaining);
+                    editor.apply();
+                    showPresets();
+                })
+                .setOnCancelListener(dialog -> finish())
+                .show();
+    }
+
+}
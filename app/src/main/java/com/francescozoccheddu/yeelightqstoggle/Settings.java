@@ -2,12 +2,80 @@ package com.francescozoccheddu.yeelightqstoggle;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Settings {
 
     public static final String DEFAULT_NAME = "Settings";
+    public static final int TILE_SLOTS = 4;
+
+    private static final String PROFILE_GROUP_PREFIX = "bulb_group@";
+
+    private static final Map<String, Settings> instances = new HashMap<>();
 
     private final SharedPreferences preferences;
+    // Kept as a field since SharedPreferences only holds weak references to its listeners
+    private final SharedPreferences.OnSharedPreferenceChangeListener changeListener = (preferences, key) -> reload();
+    private volatile Snapshot snapshot;
+
+    // Immutable view of the preferences, rebuilt only when they change
+    private static final class Snapshot {
+
+        private final boolean bulbStatic;
+        private final boolean wifiStatic;
+        private final String bulbAddress;
+        private final List<String> bulbGroup;
+        private final List<Bulb> bulbs;
+        private final String wifiSSID;
+        private final List<BulbPreset> presets;
+        // Static bulbs of the networks that have their own, keyed like the bulb profiles
+        private final Map<String, List<String>> profileGroups = new HashMap<>();
+        private final Map<String, List<Bulb>> profileBulbs = new HashMap<>();
+
+        private Snapshot(SharedPreferences preferences) {
+            bulbStatic = preferences.getBoolean("bulb_static", false);
+            wifiStatic = preferences.getBoolean("wifi_static", false);
+            bulbAddress = preferences.getString("bulb_address", null);
+            wifiSSID = preferences.getString("wifi_ssid", null);
+            final String group = preferences.getString("bulb_group", "");
+            if (!group.isEmpty()) {
+                bulbGroup = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(group.split(","))));
+            } else if (bulbAddress != null) {
+                bulbGroup = Collections.singletonList(bulbAddress);
+            } else {
+                bulbGroup = Collections.emptyList();
+            }
+            final List<BulbPreset> presets = new ArrayList<>();
+            for (String encoded : preferences.getString("presets", "").split("\n")) {
+                final BulbPreset preset = encoded.isEmpty() ? null : BulbPreset.decode(encoded);
+                if (preset != null) {
+                    presets.add(preset);
+                }
+            }
+            this.presets = Collections.unmodifiableList(presets);
+            final List<Bulb> bulbs = bulbStatic ? Bulb.fromAddresses(bulbGroup) : null;
+            this.bulbs = bulbs != null ? Collections.unmodifiableList(bulbs) : null;
+            for (Map.Entry<String, ?> pref : preferences.getAll().entrySet()) {
+                if (pref.getKey().startsWith(PROFILE_GROUP_PREFIX) && pref.getValue() instanceof String && !((String) pref.getValue()).isEmpty()) {
+                    final String profile = pref.getKey().substring(PROFILE_GROUP_PREFIX.length());
+                    final List<String> profileGroup = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(((String) pref.getValue()).split(","))));
+                    profileGroups.put(profile, profileGroup);
+                    final List<Bulb> profileBulbs = bulbStatic ? Bulb.fromAddresses(profileGroup) : null;
+                    if (profileBulbs != null) {
+                        this.profileBulbs.put(profile, Collections.unmodifiableList(profileBulbs));
+                    }
+                }
+            }
+        }
+
+    }
 
     public class Editor {
 
@@ -17,11 +85,8 @@ public class Settings {
             editor = preferences.edit();
         }
 
+        // Changes are visible to getters right away and written to disk in background
         public void apply() {
-            editor.commit();
-        }
-
-        public void applyAsync() {
             editor.apply();
         }
 
@@ -32,6 +97,22 @@ public class Settings {
             editor.putString("bulb_address", address);
         }
 
+        public void setBulbGroup(List<String> addresses) {
+            if (addresses == null) {
+                addresses = Collections.emptyList();
+            }
+            editor.putString("bulb_group", TextUtils.join(",", addresses));
+        }
+
+        // The bulbs used on the given network instead of the default group
+        public void setProfileBulbGroup(String profileKey, List<String> addresses) {
+            if (addresses == null || addresses.isEmpty()) {
+                editor.remove(PROFILE_GROUP_PREFIX + profileKey);
+            } else {
+                editor.putString(PROFILE_GROUP_PREFIX + profileKey, TextUtils.join(",", addresses));
+            }
+        }
+
         public void setWiFiSSID(String ssid) {
             if (ssid == null) {
                 ssid = "";
@@ -43,6 +124,14 @@ public class Settings {
             editor.putBoolean("bulb_static", staticBulb);
         }
 
+        public void setPresets(List<BulbPreset> presets) {
+            final List<String> encoded = new ArrayList<>(presets.size());
+            for (BulbPreset preset : presets) {
+                encoded.add(preset.encode());
+            }
+            editor.putString("presets", TextUtils.join("\n", encoded));
+        }
+
         public void setStaticWiFi(boolean staticWiFi) {
             editor.putBoolean("wifi_static", staticWiFi);
         }
@@ -50,11 +139,36 @@ public class Settings {
     }
 
     public static Settings getGlobalSettings(Context context) {
-        return new Settings(context, DEFAULT_NAME);
+        return getSettings(context, DEFAULT_NAME);
+    }
+
+    // Slot 0 keeps the original preferences file so that existing configurations carry over
+    public static Settings getTileSettings(Context context, int slot) {
+        if (slot < 0 || slot >= TILE_SLOTS) {
+            throw new IllegalArgumentException("Tile slot must be between 0 and " + (TILE_SLOTS - 1));
+        }
+        return slot == 0 ? getGlobalSettings(context) : getSettings(context, DEFAULT_NAME + slot);
     }
 
-    public Settings(Context context, String name) {
+    public static Settings getSettings(Context context, String name) {
+        synchronized (instances) {
+            Settings settings = instances.get(name);
+            if (settings == null) {
+                settings = new Settings(context.getApplicationContext(), name);
+                instances.put(name, settings);
+            }
+            return settings;
+        }
+    }
+
+    private Settings(Context context, String name) {
         preferences = context.getSharedPreferences(name, Context.MODE_PRIVATE);
+        snapshot = new Snapshot(preferences);
+        preferences.registerOnSharedPreferenceChangeListener(changeListener);
+    }
+
+    private void reload() {
+        snapshot = new Snapshot(preferences);
     }
 
     public Editor edit() {
@@ -62,41 +176,79 @@ public class Settings {
     }
 
     public String getBulbAddress() {
-        if (isBulbStatic()) {
-            final String address = preferences.getString("bulb_address", null);
-            if (address == null) {
+        final Snapshot snapshot = this.snapshot;
+        if (snapshot.bulbStatic) {
+            if (snapshot.bulbAddress == null) {
                 preferences.edit().clear().apply();
                 throw new IllegalStateException("Bad settings state");
             }
             else {
-                return address;
+                return snapshot.bulbAddress;
             }
         } else {
             return null;
         }
     }
 
+    // The static bulbs of the current network if it has its own, or the default group
+    public List<String> getBulbGroup() {
+        return getBulbGroup(ConnectivityMonitor.getInstance().getProfileKey());
+    }
+
+    public List<String> getBulbGroup(String profileKey) {
+        final Snapshot snapshot = this.snapshot;
+        if (snapshot.bulbStatic) {
+            final List<String> profileGroup = snapshot.profileGroups.get(profileKey);
+            if (profileGroup != null) {
+                return profileGroup;
+            }
+            if (snapshot.bulbGroup.isEmpty()) {
+                return Collections.singletonList(getBulbAddress());
+            } else {
+                return snapshot.bulbGroup;
+            }
+        } else {
+            return Collections.emptyList();
+        }
+    }
+
+    // Pre-parsed static bulbs of the current network, like getBulbGroup;
+    // null if the bulb is not static, any address is invalid or any is a host name
+    public List<Bulb> getBulbs() {
+        final Snapshot snapshot = this.snapshot;
+        final String profileKey = ConnectivityMonitor.getInstance().getProfileKey();
+        return snapshot.profileGroups.containsKey(profileKey) ? snapshot.profileBulbs.get(profileKey) : snapshot.bulbs;
+    }
+
+    public boolean hasDefaultBulbGroup() {
+        return !snapshot.bulbGroup.isEmpty();
+    }
+
     public String getWiFiSSID() {
-        if (isWiFiStatic()) {
-            final String ssid = preferences.getString("wifi_ssid", null);
-            if (ssid == null) {
+        final Snapshot snapshot = this.snapshot;
+        if (snapshot.wifiStatic) {
+            if (snapshot.wifiSSID == null) {
                 preferences.edit().clear().apply();
                 throw new IllegalStateException("Bad settings state");
             }
             else {
-                return ssid;
+                return snapshot.wifiSSID;
             }
         } else {
             return null;
         }
     }
 
+    public List<BulbPreset> getPresets() {
+        return snapshot.presets;
+    }
+
     public boolean isBulbStatic() {
-        return preferences.getBoolean("bulb_static", false);
+        return snapshot.bulbStatic;
     }
 
     public boolean isWiFiStatic() {
-        return preferences.getBoolean("wifi_static", false);
+        return snapshot.wifiStatic;
     }
 
 }
@@ -5,39 +5,64 @@ import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiManager;
 import android.os.Bundle;
 import android.support.design.widget.TextInputLayout;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.text.Editable;
+import android.text.TextUtils;
 import android.text.TextWatcher;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.widget.ArrayAdapter;
 import android.widget.AutoCompleteTextView;
 import android.widget.CheckBox;
-
+import android.widget.MultiAutoCompleteTextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 
 public class SettingsActivity extends AppCompatActivity {
 
+    public static final String EXTRA_SLOT = "com.francescozoccheddu.yeelightqstoggle.SLOT";
+
     private CheckBox cb_WiFiStatic;
     private CheckBox cb_BulbStatic;
     private AutoCompleteTextView actvWiFiSSID;
-    private AutoCompleteTextView actvBulbAddress;
+    private MultiAutoCompleteTextView actvBulbAddress;
     private TextInputLayout tilWiFiSSID;
     private TextInputLayout tilBulbAddress;
 
     private ArrayAdapter<String> bulbsAdapter;
-    private HashSet<Bulb> bulbSet;
+    // What the adapter holds before filtering, so that updates can be diffed against it
+    private List<String> bulbItems;
+    private BulbDiscoveryFeed bulbFeed;
     private Bulb.Discoverer bulbDiscoverer;
 
-    private Settings settings;
+    private int slot;
+    // The network the static bulbs are edited for, or empty if unknown
+    private String profileKey;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_settings);
 
+        slot = getIntent().getIntExtra(EXTRA_SLOT, 0);
+        if (slot < 0 || slot >= Settings.TILE_SLOTS) {
+            slot = 0;
+        }
+        if (slot != 0) {
+            setTitle(getString(R.string.sets_title_slot, slot + 1));
+        }
+
         cb_WiFiStatic = findViewById(R.id.sets_cb_wifi_static);
         cb_BulbStatic = findViewById(R.id.sets_cb_bulb_static);
         actvWiFiSSID = findViewById(R.id.sets_actv_wifi_ssid);
@@ -93,9 +118,11 @@ public class SettingsActivity extends AppCompatActivity {
 
 
         bulbsAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, new ArrayList<>());
-        bulbSet = new HashSet<>();
+        bulbItems = new ArrayList<>();
+        bulbFeed = new BulbDiscoveryFeed(this::updateBulbs);
 
         actvBulbAddress.setAdapter(bulbsAdapter);
+        actvBulbAddress.setTokenizer(new MultiAutoCompleteTextView.CommaTokenizer());
 
         actvBulbAddress.setOnFocusChangeListener((view, hasFocus) -> {
             if (hasFocus) {
@@ -126,12 +153,25 @@ public class SettingsActivity extends AppCompatActivity {
             }
         });
 
+        profileKey = ConnectivityMonitor.readProfileKey(this);
+
         {
-            Settings settings = Settings.getGlobalSettings(this);
+            Settings settings = Settings.getTileSettings(this, slot);
             cb_WiFiStatic.setChecked(settings.isWiFiStatic());
             cb_BulbStatic.setChecked(settings.isBulbStatic());
             actvWiFiSSID.setText(settings.getWiFiSSID());
-            actvBulbAddress.setText(settings.getBulbAddress());
+            actvBulbAddress.setText(settings.isBulbStatic() ? TextUtils.join(", ", settings.getBulbGroup(profileKey)) : null);
+        }
+
+        // Static bulbs are saved for the current network, so that each network can have its own
+        if (!profileKey.isEmpty()) {
+            tilBulbAddress.setHelperText(getString(R.string.sets_bulb_address_profile, profileKey));
+        }
+
+        // The network condition is shared by all tiles and lives in the first tile settings
+        if (slot != 0) {
+            cb_WiFiStatic.setVisibility(View.GONE);
+            tilWiFiSSID.setVisibility(View.GONE);
         }
 
     }
@@ -143,19 +183,44 @@ public class SettingsActivity extends AppCompatActivity {
 
                 @Override
                 public void onDiscover(Bulb bulb) {
-                    Log.d("SettingsActivity", "Discovered bulb '" + bulb.toString() + "'");
-                    if (bulbSet.add(bulb)) {
-                        bulbsAdapter.add(bulb.toString());
-                        if (actvBulbAddress.hasFocus()) {
-                            actvBulbAddress.showDropDown();
-                        }
-                        Log.d("SettingsActivity", "Bulb added");
-                    }
+                    bulbFeed.offer(bulb);
                 }
             };
         }
     }
 
+    private void updateBulbs(List<Bulb> bulbs) {
+        final List<String> items = new ArrayList<>(bulbs.size());
+        for (Bulb bulb : bulbs) {
+            items.add(bulb.toString());
+        }
+        if (items.equals(bulbItems)) {
+            return;
+        }
+        // Only the changed rows are touched and the list is redrawn once
+        bulbsAdapter.setNotifyOnChange(false);
+        for (int i = bulbItems.size() - 1; i >= 0; i--) {
+            if (!items.contains(bulbItems.get(i))) {
+                bulbsAdapter.remove(bulbItems.remove(i));
+            }
+        }
+        for (int i = 0; i < items.size(); i++) {
+            final String item = items.get(i);
+            if (i >= bulbItems.size() || !item.equals(bulbItems.get(i))) {
+                if (bulbItems.remove(item)) {
+                    bulbsAdapter.remove(item);
+                }
+                bulbItems.add(i, item);
+                bulbsAdapter.insert(item, i);
+            }
+        }
+        bulbsAdapter.notifyDataSetChanged();
+        if (actvBulbAddress.hasFocus()) {
+            actvBulbAddress.showDropDown();
+        }
+        Log.d("SettingsActivity", "Bulb list updated to " + bulbItems);
+    }
+
     private ArrayAdapter<String> getWiFiNetworksAdapter() {
         Log.d("SettingsActivity", "Getting configured wifi networks");
         WifiManager wifiManager = (WifiManager) getSystemService(Context.WIFI_SERVICE);
@@ -169,12 +234,33 @@ public class SettingsActivity extends AppCompatActivity {
         return null;
     }
 
-    private static boolean isValidBulbAddress(String address) {
-        return Bulb.fromAddress(address) != null;
+    private static List<String> splitBulbAddresses(String text) {
+        final List<String> addresses = new ArrayList<>();
+        for (String address : text.split(",")) {
+            address = address.trim();
+            if (!address.isEmpty()) {
+                addresses.add(address);
+            }
+        }
+        return addresses;
+    }
+
+    private static boolean isValidBulbAddress(String text) {
+        final List<String> addresses = splitBulbAddresses(text);
+        if (addresses.isEmpty()) {
+            return false;
+        }
+        // Only the syntax is checked, so typing never waits for name resolution
+        for (String address : addresses) {
+            if (!BulbAddress.isValid(address)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     private void validateBulbAddress(String address, boolean allowEmpty) {
-        if (address.isEmpty()) {
+        if (splitBulbAddresses(address).isEmpty()) {
             if (allowEmpty) {
                 tilBulbAddress.setError(null);
             } else {
@@ -196,14 +282,24 @@ public class SettingsActivity extends AppCompatActivity {
     }
 
     private void saveSettings() {
-        Settings.Editor settings = Settings.getGlobalSettings(this).edit();
+        Settings.Editor settings = Settings.getTileSettings(this, slot).edit();
 
         final String wifiSSID = actvWiFiSSID.getText().toString();
         final String bulbAddress = actvBulbAddress.getText().toString();
+        final List<String> bulbAddresses = splitBulbAddresses(bulbAddress);
 
-        settings.setWiFiSSID(wifiSSID);
-        settings.setStaticWiFi(cb_WiFiStatic.isChecked() && !wifiSSID.isEmpty());
-        settings.setBulbAddress(bulbAddress);
+        if (slot == 0) {
+            settings.setWiFiSSID(wifiSSID);
+            settings.setStaticWiFi(cb_WiFiStatic.isChecked() && !wifiSSID.isEmpty());
+        }
+        // The first group saved, or one saved off any known network, is used on networks without their own
+        if (!profileKey.isEmpty()) {
+            settings.setProfileBulbGroup(profileKey, bulbAddresses);
+        }
+        if (profileKey.isEmpty() || !Settings.getTileSettings(this, slot).hasDefaultBulbGroup()) {
+            settings.setBulbAddress(bulbAddresses.isEmpty() ? "" : bulbAddresses.get(0));
+            settings.setBulbGroup(bulbAddresses);
+        }
         settings.setStaticBulb(cb_BulbStatic.isChecked() && isValidBulbAddress(bulbAddress));
 
         settings.apply();
@@ -218,4 +314,61 @@ public class SettingsActivity extends AppCompatActivity {
         super.onPause();
         saveSettings();
     }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (bulbDiscoverer != null) {
+            bulbDiscoverer.stopSearch();
+        }
+        bulbFeed.cancel();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_settings, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.sets_menu_metrics) {
+            showMetrics();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void showMetrics() {
+        final BulbMetrics metrics = BulbMetrics.getInstance();
+        final String dump = metrics.dump();
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.sets_menu_metrics)
+                .setMessage(dump.isEmpty() ? getString(R.string.sets_metrics_empty) : dump)
+                .setPositiveButton(R.string.sets_metrics_close, null)
+                .setNeutralButton(R.string.sets_metrics_reset, (dialog, which) -> metrics.reset())
+                .setNegativeButton(R.string.sets_metrics_export, (dialog, which) -> {
+                    try {
+                        final File file = exportMetrics(dump);
+                        Toast.makeText(this, getString(R.string.sets_toast_metrics_exported, file.getAbsolutePath()), Toast.LENGTH_LONG).show();
+                    } catch (IOException e) {
+                        Log.d("SettingsActivity", "Metrics export failed");
+                        Toast.makeText(this, R.string.sets_toast_metrics_export_failed, Toast.LENGTH_SHORT).show();
+                    }
+                })
+                .show();
+    }
+
+    private File exportMetrics(String dump) throws IOException {
+        File directory = getExternalFilesDir(null);
+        if (directory == null) {
+            directory = getFilesDir();
+        }
+        final File file = new File(directory, "metrics-" + System.currentTimeMillis() + ".txt");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(dump);
+        }
+        Log.d("SettingsActivity", "Metrics exported to '" + file + "'");
+        return file;
+    }
 }
@@ -0,0 +1,16 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import android.app.Application;
+
+public class ToggleApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // Before any tile or activity can contact a bulb
+        BulbPlatform.install(new AndroidBulbPlatform());
+        ConnectivityMonitor.getInstance().start(this);
+        BulbWarmer.getInstance().start(this);
+    }
+
+}
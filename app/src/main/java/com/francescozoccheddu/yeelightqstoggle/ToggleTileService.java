@@ -1,21 +1,92 @@
 package com.francescozoccheddu.yeelightqstoggle;
 
+import android.content.ComponentName;
 import android.content.Context;
-import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
 import android.service.quicksettings.Tile;
 import android.service.quicksettings.TileService;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Every slot is a separate tile with its own settings; all of them share the pool, the cache and discoveries
 public class ToggleTileService extends TileService {
 
+    public static final class Slot1 extends ToggleTileService {
+
+        @Override
+        protected int getSlot() {
+            return 1;
+        }
+
+    }
+
+    public static final class Slot2 extends ToggleTileService {
+
+        @Override
+        protected int getSlot() {
+            return 2;
+        }
+
+    }
+
+    public static final class Slot3 extends ToggleTileService {
+
+        @Override
+        protected int getSlot() {
+            return 3;
+        }
+
+    }
+
+    private static final List<Class<? extends ToggleTileService>> SLOT_SERVICES = Collections.unmodifiableList(Arrays.asList(
+            ToggleTileService.class, Slot1.class, Slot2.class, Slot3.class));
+
+    // Only touched by the main thread
+    private static int listening = 0;
+    private static long coldStart = 0;
+    private static Context wakeContext;
+
     private boolean connected = false;
     private boolean toggling = false;
+    private long toggleStart;
+    // Resolved on first use, so that binding the tile reads the settings and the cache only if needed
+    private List<Bulb> targets;
+
+    private final BulbStateTracker.StateListener stateListener = (bulb, state) -> {
+        if (targets != null && targets.contains(bulb)) {
+            updateIcon();
+        }
+    };
+
+    // Last power drawn per bulb, so that only actual on/off flips wake the tiles and losing a state does not
+    private static final Map<Bulb, Boolean> wakePower = new HashMap<>();
+
+    // Active tiles are not bound when the panel opens, so they are woken up whenever what they show may have changed.
+    // Connections, announcements and states belong to the network, so a network change releases all of them.
+    private static final ConnectivityMonitor.ConnectivityListener wakeConnectivityListener = connected -> {
+        BulbWarmer.getInstance().release();
+        BulbStateTracker.getInstance().clear();
+        wakePower.clear();
+        requestUpdate();
+    };
+    private static final BulbStateTracker.StateListener wakeStateListener = (bulb, state) -> {
+        if (state.hasPower() && !Boolean.valueOf(state.isOn()).equals(wakePower.put(bulb, state.isOn())) && listening == 0) {
+            requestUpdate();
+        }
+    };
 
     private final Bulb.ToggleCommandListener toggleCommandListener = new Bulb.ToggleCommandListener() {
         @Override
         public void onCommandSent() {
             Log.d("ToggleTileService", "Toggle command sent");
+            BulbMetrics.getInstance().record(BulbMetrics.PHASE_TOGGLE, toggleStart);
             toggling = false;
             updateIcon();
         }
@@ -29,7 +100,34 @@ public class ToggleTileService extends TileService {
         }
     };
 
+    private final Bulb.GroupCommandListener groupCommandListener = new Bulb.GroupCommandListener() {
+        @Override
+        public void onBulbCommandSent(Bulb bulb) {
+            Log.d("ToggleTileService", "Toggle command sent to '" + bulb + "'");
+        }
+
+        @Override
+        public void onBulbSocketException(Bulb bulb, Exception exception) {
+            Log.d("ToggleTileService", "Toggle command socket exception on '" + bulb + "'");
+        }
+
+        @Override
+        public void onGroupCommandCompleted(int sent, int failed) {
+            if (sent > 0) {
+                BulbMetrics.getInstance().record(BulbMetrics.PHASE_TOGGLE, toggleStart);
+            }
+            if (failed > 0) {
+                Toast.makeText(ToggleTileService.this, getString(R.string.tile_toast_group_toggle_failed, failed, sent + failed), Toast.LENGTH_SHORT).show();
+            }
+            toggling = false;
+            updateIcon();
+        }
+    };
+
+    private final ConnectivityMonitor.ConnectivityListener connectivityListener = connected -> updateConnectedState();
+
     private void updateIcon() {
+        final long start = BulbMetrics.now();
         Tile tile = getQsTile();
         if (tile != null) {
             if (toggling) {
@@ -37,8 +135,9 @@ public class ToggleTileService extends TileService {
                 tile.setLabel(getString(R.string.tile_label_toggling));
             } else {
                 if (connected) {
-                    tile.setState(Tile.STATE_ACTIVE);
-                    tile.setLabel(getString(R.string.tile_label_connected));
+                    final Boolean on = BulbStateTracker.getInstance().isAnyOn(getTargets());
+                    tile.setState(Boolean.FALSE.equals(on) ? Tile.STATE_INACTIVE : Tile.STATE_ACTIVE);
+                    tile.setLabel(getSlot() == 0 ? getString(R.string.tile_label_connected) : getString(R.string.tile_label_connected_slot, getSlot() + 1));
                 }
                 else {
                     tile.setState(Tile.STATE_UNAVAILABLE);
@@ -46,78 +145,204 @@ public class ToggleTileService extends TileService {
                 }
             }
             tile.updateTile();
+            BulbMetrics.getInstance().record(BulbMetrics.PHASE_TILE_UPDATE, start);
+            if (coldStart != 0) {
+                BulbMetrics.getInstance().record(BulbMetrics.PHASE_COLD_START, coldStart);
+                coldStart = 0;
+            }
         }
     }
 
     private void toggle() {
         if (!toggling) {
             toggling = true;
+            toggleStart = BulbMetrics.now();
             updateIcon();
-            Settings settings = Settings.getGlobalSettings(this);
+            final Settings settings = getSettings();
             if (settings.isBulbStatic()) {
-                final Bulb bulb = Bulb.fromAddress(settings.getBulbAddress());
-                if (bulb == null) {
-                    throw new RuntimeException("Bad bulb address '" + settings.getBulbAddress() + "'");
+                final List<Bulb> bulbs = settings.getBulbs();
+                if (bulbs != null) {
+                    flipStatic(bulbs);
+                } else {
+                    // Host names are resolved in background and cached, so only the first tap after a while waits for DNS
+                    final Handler handler = new Handler(Looper.myLooper());
+                    BulbNameResolver.getInstance().resolve(settings.getBulbGroup()).thenAccept(resolved -> handler.post(() -> {
+                        if (resolved != null) {
+                            flipStatic(resolved);
+                        } else {
+                            Log.d("ToggleTileService", "Cannot resolve static group " + settings.getBulbGroup());
+                            Toast.makeText(this, R.string.tile_toast_toggle_failed, Toast.LENGTH_SHORT).show();
+                            toggling = false;
+                            updateIcon();
+                        }
+                    }));
                 }
-                Log.d("ToggleTileService", "Sending toggle command to static bulb '" + bulb.getAddress() + "'");
-                bulb.sendToggleCommand(toggleCommandListener);
             } else {
-                Log.d("ToggleTileService", "Creating new discoverer");
-                new Bulb.Discoverer(5000) {
-
-                    boolean done = false;
-
-                    @Override
-                    public void onDiscover(Bulb bulb) {
-                        if (!done) {
-                            Log.d("ToggleTileService", "Sending toggle command to dynamic bulb '" + bulb.getAddress() + "'");
-                            done = true;
-                            bulb.sendToggleCommand(toggleCommandListener);
-                            stopSearch();
-                        }
-                    }
+                resolveAndFlip(BulbCache.getInstance(this).getLatest(), true);
+            }
+        } else {
+            Toast.makeText(this, R.string.tile_toast_already_toggling, Toast.LENGTH_SHORT).show();
+        }
+    }
 
-                    @Override
-                    public void onInterrupted() {
-                        if (!done) {
-                            Log.d("ToggleTileService", "Discoverer interrupted");
-                            Toast.makeText(ToggleTileService.this, R.string.tile_toast_discovery_failed, Toast.LENGTH_SHORT).show();
-                            toggling = false;
-                        }
-                        updateIcon();
-                    }
+    private void flipStatic(List<Bulb> bulbs) {
+        targets = bulbs;
+        if (bulbs.size() == 1) {
+            // The id of a static bulb is known only if it has been seen in a discovery or announcement
+            final Bulb cached = BulbCache.getInstance(this).getByAddress(bulbs.get(0));
+            resolveAndFlip(cached != null ? cached : bulbs.get(0), false);
+        } else {
+            Log.d("ToggleTileService", "Sending toggle command to static group " + bulbs);
+            flip(bulbs, groupCommandListener);
+        }
+    }
+
+    // Prefer idempotent set_power when the current state is known, so that a stale state cannot invert the intent
+    private void flip(Bulb bulb, Bulb.ToggleCommandListener listener) {
+        final BulbState state = BulbStateTracker.getInstance().getState(bulb);
+        if (state.hasPower()) {
+            bulb.sendPowerCommand(!state.isOn(), listener);
+        } else {
+            bulb.sendToggleCommand(listener);
+        }
+    }
+
+    private void flip(List<Bulb> bulbs, Bulb.GroupCommandListener listener) {
+        final Boolean on = BulbStateTracker.getInstance().isAnyOn(bulbs);
+        if (on != null) {
+            Bulb.sendPowerCommand(bulbs, !on, listener);
+        } else {
+            Bulb.sendToggleCommand(bulbs, listener);
+        }
+    }
+
+    protected int getSlot() {
+        return 0;
+    }
+
+    private Settings getSettings() {
+        return Settings.getTileSettings(this, getSlot());
+    }
+
+    static int getSlotCount() {
+        return SLOT_SERVICES.size();
+    }
+
+    static int getSlot(ComponentName component) {
+        if (component != null) {
+            for (int slot = 0; slot < SLOT_SERVICES.size(); slot++) {
+                if (SLOT_SERVICES.get(slot).getName().equals(component.getClassName())) {
+                    return slot;
+                }
+            }
+        }
+        return 0;
+    }
 
-                };
+    private List<Bulb> getTargets() {
+        if (targets == null) {
+            targets = getTargets(this, getSlot());
+        }
+        return targets;
+    }
+
+    // The configured static bulbs, or the latest cached dynamic one
+    static List<Bulb> getTargets(Context context, int slot) {
+        final Settings settings = Settings.getTileSettings(context, slot);
+        if (settings.isBulbStatic()) {
+            List<Bulb> bulbs = settings.getBulbs();
+            if (bulbs == null) {
+                bulbs = BulbNameResolver.getInstance().getCached(settings.getBulbGroup());
             }
+            return bulbs != null ? bulbs : Collections.emptyList();
         } else {
-            Toast.makeText(this, R.string.tile_toast_already_toggling, Toast.LENGTH_SHORT).show();
+            final Bulb bulb = BulbCache.getInstance(context).getLatest();
+            return bulb != null ? Collections.singletonList(bulb) : Collections.emptyList();
         }
     }
 
+    // A stale address costs a discovery round trip instead of a connection timeout
+    private void resolveAndFlip(Bulb known, boolean anyBulb) {
+        BulbResolver.resolve(this, known, anyBulb, bulb -> {
+            if (anyBulb) {
+                BulbMetrics.getInstance().increment(known != null && known.equals(bulb) ? BulbMetrics.COUNTER_CACHE_HIT : BulbMetrics.COUNTER_CACHE_MISS);
+            }
+            if (bulb != null) {
+                Log.d("ToggleTileService", "Sending toggle command to bulb '" + bulb.getAddress() + "'");
+                targets = Collections.singletonList(bulb);
+                flip(bulb, toggleCommandListener);
+            } else {
+                Log.d("ToggleTileService", "No reachable bulb");
+                Toast.makeText(this, known == null ? R.string.tile_toast_discovery_failed : R.string.tile_toast_toggle_failed, Toast.LENGTH_SHORT).show();
+                toggling = false;
+                updateIcon();
+            }
+        });
+    }
+
     private void updateConnectedState() {
-        connected = WiFiReceiver.isConnected(this);
+        connected = ConnectivityMonitor.getInstance().isConnected();
+        targets = null;
         Log.d("ToggleTileService", "State " + (connected ? "connected" : "disconnected"));
         updateIcon();
     }
 
+    // Must be called on the main thread, e.g. after the settings changed
     public static void update(Context context) {
-        context.startService(new Intent(context, ToggleTileService.class));
+        // The settings may be edited in a process where no tile has been bound yet
+        ConnectivityMonitor.getInstance().start(context);
+        ConnectivityMonitor.getInstance().refresh();
+        requestUpdate(context);
+    }
+
+    private static void requestUpdate() {
+        if (wakeContext != null) {
+            requestUpdate(wakeContext);
+        }
+    }
+
+    private static void requestUpdate(Context context) {
+        for (Class<? extends ToggleTileService> service : SLOT_SERVICES) {
+            requestListeningState(context, new ComponentName(context, service));
+        }
     }
 
     @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
-        super.onStartCommand(intent, flags, startId);
-        Log.d("ToggleTileService", "Service start command");
-        updateConnectedState();
-        return START_STICKY;
+    public void onCreate() {
+        super.onCreate();
+        if (wakeContext == null) {
+            // Measured from the first bind in the process until the tile is first drawn
+            coldStart = BulbMetrics.now();
+            wakeContext = getApplicationContext();
+            ConnectivityMonitor.getInstance().addListener(wakeConnectivityListener);
+            BulbStateTracker.getInstance().addListener(wakeStateListener);
+        }
+        ConnectivityMonitor.getInstance().start(this);
+        ConnectivityMonitor.getInstance().addListener(connectivityListener);
     }
 
     @Override
     public void onStartListening() {
         super.onStartListening();
+        listening++;
+        BulbStateTracker.getInstance().addListener(stateListener);
         updateConnectedState();
     }
 
+    @Override
+    public void onStopListening() {
+        super.onStopListening();
+        listening--;
+        BulbStateTracker.getInstance().removeListener(stateListener);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // Pooled connections outlive the tile until the warm period ends, since a bound tile is not a used one
+        ConnectivityMonitor.getInstance().removeListener(connectivityListener);
+    }
+
     @Override
     public void onTileAdded() {
         super.onTileAdded();
@@ -128,6 +353,8 @@ public class ToggleTileService extends TileService {
     public void onClick() {
         super.onClick();
         if (connected) {
+            // More taps or a long press usually follow, so the targets are kept connected for a while
+            BulbWarmer.getInstance().warm(this, getTargets(), !getSettings().isBulbStatic());
             toggle();
         }
     }
@@ -0,0 +1,76 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// Time until Bulb.Discoverer reports a fake bulb, under search packet loss; a lost search costs a retransmit delay
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DiscoveryBenchmark {
+
+    private static final int TIMEOUT = 2000;
+
+    @Param({"0", "0.3"})
+    public float packetLoss;
+
+    private FakeBulb bulb;
+    private InetSocketAddress target;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        // Nothing to sweep when every search is lost, so that only the search itself is measured
+        BulbPlatform.install(new BulbPlatform() {
+
+            @Override
+            public List<Subnet> getSubnets() {
+                return Collections.emptyList();
+            }
+
+        });
+        bulb = new FakeBulb(1, packetLoss, 0);
+        target = new InetSocketAddress(bulb.getInet(), bulb.getSsdpPort());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        bulb.close();
+    }
+
+    // Null if every search and retransmit was lost
+    @Benchmark
+    public Bulb discover() throws InterruptedException, ExecutionException {
+        final CompletableFuture<Bulb> result = new CompletableFuture<>();
+        new Bulb.Discoverer(TIMEOUT, 1, null, target) {
+
+            @Override
+            public void onDiscover(Bulb bulb) {
+                result.complete(bulb);
+            }
+
+            @Override
+            public void onInterrupted() {
+                result.complete(null);
+            }
+
+        };
+        return result.get();
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Parser and encoder throughput, without any I/O
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProtocolBenchmark {
+
+    private final SsdpMessage ssdp = new SsdpMessage();
+    private final BulbCommand setPower = BulbCommand.setPower(true, BulbCommand.DEFAULT_SMOOTH_DURATION);
+    private byte[] searchResponse;
+    private byte[] announcement;
+
+    @Setup
+    public void setup() throws IOException {
+        try (FakeBulb bulb = new FakeBulb(0, 0, 0)) {
+            searchResponse = bulb.getSearchResponse();
+            announcement = bulb.getAnnouncement();
+        }
+    }
+
+    @Benchmark
+    public long parseSearchResponse() {
+        ssdp.parse(searchResponse, 0, searchResponse.length);
+        return ssdp.getId();
+    }
+
+    @Benchmark
+    public long parseAnnouncement() {
+        ssdp.parse(announcement, 0, announcement.length);
+        return ssdp.getId();
+    }
+
+    @Benchmark
+    public BulbState parseState() {
+        ssdp.parse(searchResponse, 0, searchResponse.length);
+        return ssdp.toState();
+    }
+
+    @Benchmark
+    public String encodeCommand() {
+        return setPower.toMessage(42);
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import org.json.JSONArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// Time for BulbRateLimiter to get a burst acknowledged by a fake bulb enforcing the real 60 commands per minute quota;
+// a command rejected for quota fails the run, since pacing the burst is the whole point of the limiter
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class RateLimitBenchmark {
+
+    private static final int BURST = 10;
+
+    // Not coalesced by the limiter, so every command of the burst reaches the bulb
+    private final List<BulbCommand> commands = new ArrayList<>(BURST);
+    private FakeBulb fake;
+    private Bulb bulb;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        fake = new FakeBulb(1, 0, 60);
+        bulb = new Bulb(fake.getInet(), fake.getPort());
+        for (int i = 0; i < BURST; i++) {
+            commands.add(BulbCommand.getProp("power"));
+        }
+        BulbConnectionPool.getInstance().setKeepAlive(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BulbConnectionPool.getInstance().setKeepAlive(false);
+        fake.close();
+    }
+
+    @Benchmark
+    public int burst() throws InterruptedException, ExecutionException {
+        int acknowledged = 0;
+        for (CompletableFuture<JSONArray> reply : BulbRateLimiter.getInstance().call(bulb, commands, Bulb.DEFAULT_COMMAND_TIMEOUT)) {
+            reply.get();
+            acknowledged++;
+        }
+        return acknowledged;
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import org.json.JSONArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// Tap-to-ack latency of BulbConnectionPool against a fake bulb, with pooled connections or a new one per call
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ToggleBenchmark {
+
+    private static final int TIMEOUT = 2000;
+
+    @Param({"0", "5"})
+    public int latencyMillis;
+
+    @Param({"true", "false"})
+    public boolean keepAlive;
+
+    private final List<BulbCommand> toggle = Collections.singletonList(BulbCommand.toggle());
+    private final List<BulbCommand> burst = Arrays.asList(
+            BulbCommand.setPower(true, BulbCommand.DEFAULT_SMOOTH_DURATION),
+            new BulbCommand("set_bright", 50, "smooth", BulbCommand.DEFAULT_SMOOTH_DURATION),
+            BulbCommand.getProp("power", "bright"));
+    private final BulbConnectionPool pool = BulbConnectionPool.getInstance();
+    private FakeBulb fake;
+    private Bulb bulb;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        fake = new FakeBulb(latencyMillis, 0, 0);
+        bulb = new Bulb(fake.getInet(), fake.getPort());
+        pool.setKeepAlive(keepAlive);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.setKeepAlive(false);
+        fake.close();
+    }
+
+    private int call(List<BulbCommand> commands) throws InterruptedException, ExecutionException {
+        int results = 0;
+        for (CompletableFuture<JSONArray> reply : pool.call(bulb, commands, TIMEOUT)) {
+            results += reply.get().length();
+        }
+        return results;
+    }
+
+    @Benchmark
+    public int toggle() throws InterruptedException, ExecutionException {
+        return call(toggle);
+    }
+
+    @Benchmark
+    public int pipelinedBurst() throws InterruptedException, ExecutionException {
+        return call(burst);
+    }
+
+    @Benchmark
+    public int sequentialBurst() throws InterruptedException, ExecutionException {
+        int results = 0;
+        for (BulbCommand command : burst) {
+            results += call(Collections.singletonList(command));
+        }
+        return results;
+    }
+
+}
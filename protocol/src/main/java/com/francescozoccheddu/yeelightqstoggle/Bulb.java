@@ -0,0 +1,643 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import org.json.JSONArray;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+public final class Bulb {
+
+    public interface ToggleCommandListener {
+        void onCommandSent();
+
+        void onSocketException(Exception exception);
+    }
+
+    public interface GroupCommandListener {
+        void onBulbCommandSent(Bulb bulb);
+
+        void onBulbSocketException(Bulb bulb, Exception exception);
+
+        void onGroupCommandCompleted(int sent, int failed);
+    }
+
+    private final InetAddress inet;
+    private final int port;
+    private final String id;
+
+    public static final int DEFAULT_COMMAND_TIMEOUT = 2000;
+
+    // Never resolves host names: they give null here and have to go through BulbNameResolver
+    public static Bulb fromAddress(String address) {
+        final long start = BulbMetrics.now();
+        try {
+            final BulbAddress parsed = BulbAddress.parse(address);
+            return parsed != null && parsed.isLiteral() ? new Bulb(parsed.toInetAddress(), parsed.getPort()) : null;
+        } finally {
+            BulbMetrics.getInstance().record(BulbMetrics.PHASE_PARSE, start);
+        }
+    }
+
+    public static Bulb fromSsdp(SsdpMessage ssdp) {
+        return new Bulb(ssdp.getInet(), ssdp.getPort(), ssdp.hasId() ? SsdpMessage.formatId(ssdp.getId()) : null);
+    }
+
+    public static List<Bulb> fromAddresses(Collection<String> addresses) {
+        final List<Bulb> bulbs = new ArrayList<>(addresses.size());
+        for (String address : addresses) {
+            final Bulb bulb = fromAddress(address);
+            if (bulb == null) {
+                return null;
+            }
+            bulbs.add(bulb);
+        }
+        return bulbs;
+    }
+
+    public Bulb(InetAddress inet, int port) {
+        this(inet, port, null);
+    }
+
+    public Bulb(InetAddress inet, int port, String id) {
+        if (inet == null) {
+            throw new IllegalArgumentException("Null address");
+        }
+        if (port < 1 || port > 65535) {
+            throw new IllegalArgumentException("Invalid port");
+        }
+        this.inet = inet;
+        this.port = port;
+        this.id = id;
+    }
+
+    public Future<?> sendToggleCommand(ToggleCommandListener commandListener) {
+        return sendCommands(Collections.singletonList(BulbCommand.toggle()), DEFAULT_COMMAND_TIMEOUT, commandListener);
+    }
+
+    public Future<?> sendPowerCommand(boolean on, ToggleCommandListener commandListener) {
+        return sendCommands(Collections.singletonList(BulbCommand.setPower(on, BulbCommand.DEFAULT_SMOOTH_DURATION)), DEFAULT_COMMAND_TIMEOUT, commandListener);
+    }
+
+    public Future<?> sendCommand(BulbCommand command, ToggleCommandListener commandListener) {
+        return sendCommands(Collections.singletonList(command), DEFAULT_COMMAND_TIMEOUT, commandListener);
+    }
+
+    public Future<?> sendPreset(BulbPreset preset, ToggleCommandListener commandListener) {
+        return sendCommands(preset.toCommands(BulbCommand.DEFAULT_SMOOTH_DURATION), DEFAULT_COMMAND_TIMEOUT, commandListener);
+    }
+
+    // Reads the state from the bulb itself; the tracker is updated before the listener is called
+    public Future<?> requestState(ToggleCommandListener commandListener) {
+        return sendCommands(Collections.singletonList(BulbStateTracker.STATE_REQUEST), DEFAULT_COMMAND_TIMEOUT, commandListener);
+    }
+
+    // Streams frames to the bulb over a connection it opens back to us, bypassing the command quota
+    public BulbMusicSession startMusicSession(int frameRate, BulbMusicSession.Listener listener) {
+        return new BulbMusicSession(this, frameRate, listener);
+    }
+
+    private static Exception unwrap(Throwable exception) {
+        if (exception instanceof CompletionException && exception.getCause() != null) {
+            exception = exception.getCause();
+        }
+        return exception instanceof Exception ? (Exception) exception : new Exception(exception);
+    }
+
+    // The commands are pipelined on the same connection; the listener is notified once all of them have been acknowledged
+    public Future<?> sendCommands(List<BulbCommand> commands, int timeout, ToggleCommandListener commandListener) {
+        final Executor callbacks = commandListener == null ? null : BulbPlatform.getInstance().getCallbackExecutor();
+
+        // Never blocks: the commands are queued on the event loop and the listener is called back on this thread
+        final List<CompletableFuture<JSONArray>> replies = BulbRateLimiter.getInstance().call(this, commands, timeout);
+        for (int i = 0; i < commands.size(); i++) {
+            if (commands.get(i) == BulbStateTracker.STATE_REQUEST) {
+                replies.set(i, replies.get(i).thenApply(result -> {
+                    BulbStateTracker.getInstance().onProperties(this, result);
+                    return result;
+                }));
+            }
+        }
+        final CompletableFuture<Void> all = CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0]));
+        if (callbacks != null) {
+            all.whenComplete((result, exception) -> callbacks.execute(() -> {
+                if (exception == null) {
+                    commandListener.onCommandSent();
+                } else {
+                    commandListener.onSocketException(unwrap(exception));
+                }
+            }));
+        }
+        return all;
+    }
+
+    public static void sendToggleCommand(Collection<Bulb> bulbs, GroupCommandListener groupListener) {
+        sendGroupCommand(bulbs, groupListener, Bulb::sendToggleCommand);
+    }
+
+    public static void sendPowerCommand(Collection<Bulb> bulbs, boolean on, GroupCommandListener groupListener) {
+        sendGroupCommand(bulbs, groupListener, (bulb, listener) -> bulb.sendPowerCommand(on, listener));
+    }
+
+    public static void sendPreset(Collection<Bulb> bulbs, BulbPreset preset, GroupCommandListener groupListener) {
+        sendGroupCommand(bulbs, groupListener, (bulb, listener) -> bulb.sendPreset(preset, listener));
+    }
+
+    private static void sendGroupCommand(Collection<Bulb> bulbs, GroupCommandListener groupListener, BiConsumer<Bulb, ToggleCommandListener> command) {
+        final int count = bulbs.size();
+        if (count == 0) {
+            // No bulb would ever report, so the group is completed right away
+            if (groupListener != null) {
+                BulbPlatform.getInstance().getCallbackExecutor().execute(() -> groupListener.onGroupCommandCompleted(0, 0));
+            }
+            return;
+        }
+        final int[] results = new int[2];
+        for (Bulb bulb : bulbs) {
+            command.accept(bulb, groupListener == null ? null : new ToggleCommandListener() {
+
+                @Override
+                public void onCommandSent() {
+                    results[0]++;
+                    groupListener.onBulbCommandSent(bulb);
+                    notifyIfCompleted();
+                }
+
+                @Override
+                public void onSocketException(Exception exception) {
+                    results[1]++;
+                    groupListener.onBulbSocketException(bulb, exception);
+                    notifyIfCompleted();
+                }
+
+                private void notifyIfCompleted() {
+                    if (results[0] + results[1] == count) {
+                        groupListener.onGroupCommandCompleted(results[0], results[1]);
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof Bulb && equals((Bulb) obj);
+    }
+
+    public boolean equals(Bulb other) {
+        return other != null && inet.equals(other.inet) && port == other.port;
+    }
+
+    @Override
+    public int hashCode() {
+        return inet.hashCode() + port;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public InetAddress getInet() {
+        return inet;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getAddress() {
+        return inet.getHostAddress() + ":" + port;
+    }
+
+    @Override
+    public String toString() {
+        return getAddress();
+    }
+
+    public URI toUri() {
+        try {
+            return new URI("my://" + getAddress());
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    public static class Discoverer implements BulbEventLoop.ChannelHandler {
+
+        public static final String UDP_HOST = "239.255.255.250";
+        public static final int UDP_PORT = 1982;
+
+        // A single lost datagram should not cost a whole timeout
+        private static final int[] RETRANSMIT_DELAYS = {100, 300};
+        private static final int MIN_FIRST_RESPONSE_DEADLINE = 1000;
+
+        // Smoothed first response time per network profile, estimated like the TCP retransmission timeout
+        private static final class ResponseTimeEstimator {
+
+            private static final Map<String, float[]> estimates = new HashMap<>();
+            // Networks where only the subnet sweep found bulbs, so it starts right away there
+            private static final Set<String> multicastBlocked = new HashSet<>();
+
+            // Network handles change on every reconnection, the network key stays the same
+            private static String getKey() {
+                return BulbPlatform.getInstance().getNetworkKey();
+            }
+
+            private static synchronized int getDeadline(int timeout) {
+                final float[] estimate = estimates.get(getKey());
+                if (estimate == null) {
+                    return timeout;
+                }
+                final int deadline = Math.round(estimate[0] + 4 * estimate[1]) + RETRANSMIT_DELAYS[RETRANSMIT_DELAYS.length - 1];
+                return Math.min(timeout, Math.max(MIN_FIRST_RESPONSE_DEADLINE, deadline));
+            }
+
+            private static synchronized boolean isMulticastBlocked() {
+                return multicastBlocked.contains(getKey());
+            }
+
+            private static synchronized void setMulticastBlocked(boolean blocked) {
+                if (blocked) {
+                    multicastBlocked.add(getKey());
+                } else {
+                    multicastBlocked.remove(getKey());
+                }
+            }
+
+            private static synchronized void update(long responseTime) {
+                final String key = getKey();
+                final float[] estimate = estimates.get(key);
+                if (estimate == null) {
+                    estimates.put(key, new float[]{responseTime, responseTime / 2f});
+                } else {
+                    estimate[1] = 0.75f * estimate[1] + 0.25f * Math.abs(estimate[0] - responseTime);
+                    estimate[0] = 0.875f * estimate[0] + 0.125f * responseTime;
+                }
+            }
+
+        }
+
+        private final DatagramChannel channel;
+        private final InetSocketAddress target;
+        private final Executor callbacks = BulbPlatform.getInstance().getCallbackExecutor();
+        private final ByteBuffer request = ByteBuffer.wrap(SsdpMessage.SEARCH_REQUEST.getBytes(StandardCharsets.US_ASCII));
+        private final ByteBuffer buffer = ByteBuffer.allocate(1024);
+        private final SsdpMessage ssdp = new SsdpMessage();
+        private final int timeout;
+        private final int expected;
+        private final Predicate<Bulb> wanted;
+        private volatile boolean searching = true;
+        // Only touched by the event loop thread
+        // The ids are kept unboxed alongside the bulbs, so that matching a repeated answer allocates nothing;
+        // bulbs that do not send an id, or that only the sweep found so far, are matched by address instead
+        private final List<Bulb> found = new ArrayList<>();
+        private long[] foundIds = new long[8];
+        private final List<BulbEventLoop.Timeout> retransmits = new ArrayList<>(RETRANSMIT_DELAYS.length);
+        private List<NetworkInterface> interfaces;
+        private long startTime;
+        private int matched = 0;
+        private boolean responded = false;
+        private boolean closed = false;
+        private BulbEventLoop.Timeout deadline;
+        private BulbSweeper sweeper;
+
+        public Discoverer(final int timeout) {
+            this(timeout, 0, null);
+        }
+
+        public Discoverer(final int timeout, final int expected) {
+            this(timeout, expected, null);
+        }
+
+        // Completes as soon as the expected number of wanted bulbs answered, or never early if expected is 0;
+        // every bulb that answers is reported, but only the wanted ones count (all of them if wanted is null)
+        public Discoverer(final int timeout, final int expected, final Predicate<Bulb> wanted) {
+            this(timeout, expected, wanted, new InetSocketAddress(UDP_HOST, UDP_PORT));
+        }
+
+        // Searches a single responder instead of the multicast group, e.g. a fake bulb on loopback
+        Discoverer(final int timeout, final int expected, final Predicate<Bulb> wanted, final InetSocketAddress target) {
+
+            if (timeout < 1000 || timeout > 120000) {
+                throw new IllegalArgumentException("Timeout must be longer than 1 second and shorter than 2 minutes");
+            }
+            if (expected < 0) {
+                throw new IllegalArgumentException("Negative expected bulb count");
+            }
+            this.timeout = timeout;
+            this.expected = expected;
+            this.wanted = wanted;
+            this.target = target;
+
+            try {
+                channel = DatagramChannel.open(StandardProtocolFamily.INET);
+                channel.configureBlocking(false);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            final BulbEventLoop loop = BulbEventLoop.getInstance();
+            loop.execute(() -> {
+                if (closed) {
+                    return;
+                }
+                try {
+                    loop.register(channel, SelectionKey.OP_READ, this);
+                    interfaces = getMulticastInterfaces();
+                    startTime = BulbMetrics.now();
+                    sendRequest();
+                    for (int delay : RETRANSMIT_DELAYS) {
+                        retransmits.add(loop.schedule(this::retransmit, delay));
+                    }
+                    // Until someone answers we only wait as long as answers usually take on this network,
+                    // then we fall back to sweeping the subnet in case multicast is filtered
+                    deadline = loop.schedule(() -> {
+                        BulbMetrics.getInstance().increment(BulbMetrics.COUNTER_DISCOVERY_TIMEOUT);
+                        if (sweeper == null) {
+                            startSweep();
+                        } else if (!sweeper.isRunning()) {
+                            close();
+                        }
+                    }, ResponseTimeEstimator.getDeadline(timeout));
+                    if (ResponseTimeEstimator.isMulticastBlocked()) {
+                        startSweep();
+                    }
+                } catch (IOException e) {
+                    close();
+                }
+            });
+        }
+
+        // Sends the request once on every interface that can reach the bulbs
+        private void sendRequest() throws IOException {
+            if (interfaces.isEmpty() || !target.getAddress().isMulticastAddress()) {
+                request.rewind();
+                channel.send(request, target);
+                return;
+            }
+            IOException lastException = null;
+            int sent = 0;
+            for (NetworkInterface networkInterface : interfaces) {
+                try {
+                    channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+                    request.rewind();
+                    channel.send(request, target);
+                    sent++;
+                } catch (IOException e) {
+                    lastException = e;
+                }
+            }
+            if (sent == 0) {
+                throw lastException;
+            }
+        }
+
+        private void startSweep() {
+            sweeper = new BulbSweeper(new BulbSweeper.Listener() {
+
+                @Override
+                public void onFound(Bulb bulb) {
+                    // Bulbs that also answered the search are already known by id
+                    if (closed || found.contains(bulb)) {
+                        return;
+                    }
+                    addFound(bulb, 0);
+                    if (!responded) {
+                        ResponseTimeEstimator.setMulticastBlocked(true);
+                    }
+                    Discoverer.this.onFound(Collections.singletonList(new Found(bulb, SsdpMessage.DEFAULT_MAX_AGE)), false);
+                }
+
+                @Override
+                public void onFinished() {
+                    if (found.isEmpty()) {
+                        close();
+                    }
+                }
+
+            });
+            sweeper.start();
+        }
+
+        private void retransmit() {
+            if (closed || isComplete()) {
+                return;
+            }
+            try {
+                sendRequest();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        public static List<NetworkInterface> getMulticastInterfaces() throws IOException {
+            final List<NetworkInterface> interfaces = new ArrayList<>();
+            final Enumeration<NetworkInterface> all = NetworkInterface.getNetworkInterfaces();
+            if (all == null) {
+                return interfaces;
+            }
+            for (NetworkInterface networkInterface : Collections.list(all)) {
+                if (networkInterface.isUp() && networkInterface.supportsMulticast() && !networkInterface.isLoopback()) {
+                    for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+                        if (address instanceof Inet4Address) {
+                            interfaces.add(networkInterface);
+                            break;
+                        }
+                    }
+                }
+            }
+            return interfaces;
+        }
+
+        // A few bulbs per network, so a linear scan is cheaper than hashing a boxed key
+        private int indexOfId(long id) {
+            for (int i = 0; i < found.size(); i++) {
+                if (foundIds[i] == id && found.get(i).getId() != null) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private int indexOfUnidentified(SsdpMessage ssdp) {
+            for (int i = 0; i < found.size(); i++) {
+                final Bulb bulb = found.get(i);
+                if (bulb.getId() == null && bulb.getPort() == ssdp.getPort() && ssdp.isSameAddress(bulb.getInet())) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void addFound(Bulb bulb, long id) {
+            if (found.size() == foundIds.length) {
+                foundIds = Arrays.copyOf(foundIds, foundIds.length * 2);
+            }
+            foundIds[found.size()] = id;
+            found.add(bulb);
+        }
+
+        private static final class Found {
+
+            private final Bulb bulb;
+            private final int maxAge;
+
+            private Found(Bulb bulb, int maxAge) {
+                this.bulb = bulb;
+                this.maxAge = maxAge;
+            }
+
+        }
+
+        @Override
+        public final void onReady(SelectionKey key) {
+            List<Found> batch = null;
+            try {
+                while (channel.receive(buffer) != null) {
+                    if (ssdp.parse(buffer.array(), 0, buffer.position()) && !ssdp.isAnnounce()) {
+                        // Retransmits make bulbs answer more than once, so repeated answers from a known
+                        // address only refresh its state; a known id at a new address replaces the old entry
+                        final int index = ssdp.hasId() ? indexOfId(ssdp.getId()) : indexOfUnidentified(ssdp);
+                        final Bulb known = index != -1 ? found.get(index) : null;
+                        if (known != null && known.getPort() == ssdp.getPort() && ssdp.isSameAddress(known.getInet())) {
+                            BulbStateTracker.getInstance().update(known, ssdp.toState());
+                        } else {
+                            final Bulb bulb = Bulb.fromSsdp(ssdp);
+                            BulbStateTracker.getInstance().update(bulb, ssdp.toState());
+                            // A bulb the sweep found is known by address until it answers with its id
+                            final int swept = index == -1 && ssdp.hasId() ? indexOfUnidentified(ssdp) : -1;
+                            if (index != -1 || swept != -1) {
+                                found.set(index != -1 ? index : swept, bulb);
+                                foundIds[index != -1 ? index : swept] = ssdp.getId();
+                            } else {
+                                addFound(bulb, ssdp.getId());
+                            }
+                            if (swept == -1) {
+                                if (batch == null) {
+                                    batch = new ArrayList<>();
+                                }
+                                batch.add(new Found(bulb, ssdp.getMaxAge()));
+                            }
+                        }
+                    }
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                close();
+            }
+            if (batch != null) {
+                onFound(batch, true);
+            }
+        }
+
+        private boolean isComplete() {
+            return expected > 0 && matched >= expected;
+        }
+
+        // Everything received in one wakeup is delivered with a single message
+        private void onFound(List<Found> batch, boolean multicast) {
+            for (Found found : batch) {
+                if (wanted == null || wanted.test(found.bulb)) {
+                    matched++;
+                }
+            }
+            callbacks.execute(() -> {
+                for (Found found : batch) {
+                    onDiscover(found.bulb, found.maxAge);
+                }
+            });
+            if (closed) {
+                return;
+            }
+            if (multicast) {
+                ResponseTimeEstimator.setMulticastBlocked(false);
+            }
+            if (!responded) {
+                responded = true;
+                BulbMetrics.getInstance().record(BulbMetrics.PHASE_DISCOVERY, startTime);
+                final long elapsed = (BulbMetrics.now() - startTime) / 1_000_000L;
+                if (multicast) {
+                    ResponseTimeEstimator.update(elapsed);
+                }
+                if (deadline != null) {
+                    deadline.cancel();
+                }
+                deadline = BulbEventLoop.getInstance().schedule(this::close, Math.max(1, timeout - elapsed));
+            }
+            if (isComplete()) {
+                close();
+            }
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            searching = false;
+            if (deadline != null) {
+                deadline.cancel();
+            }
+            for (BulbEventLoop.Timeout retransmit : retransmits) {
+                retransmit.cancel();
+            }
+            if (sweeper != null) {
+                sweeper.stop();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+            callbacks.execute(this::onInterrupted);
+        }
+
+        public void onDiscover(Bulb bulb, int maxAge) {
+            onDiscover(bulb);
+        }
+
+        public void onDiscover(Bulb bulb) {
+        }
+
+        public void onInterrupted() {
+        }
+
+        public final void stopSearch() {
+            if (searching) {
+                searching = false;
+                BulbEventLoop.getInstance().execute(this::close);
+            }
+        }
+
+        public final boolean isSearching() {
+            return searching;
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+// A "host:port" bulb address checked only syntactically, so parsing never touches the network
+public final class BulbAddress {
+
+    private static final int MAX_HOST_LENGTH = 253;
+    private static final int MAX_LABEL_LENGTH = 63;
+
+    private final String host;
+    private final int port;
+    // Null if the host is a name that needs to be resolved
+    private final byte[] literal;
+
+    private BulbAddress(String host, int port, byte[] literal) {
+        this.host = host;
+        this.port = port;
+        this.literal = literal;
+    }
+
+    // Returns null if the text is not a valid IPv4 or host name address with a port
+    public static BulbAddress parse(String text) {
+        if (text == null) {
+            return null;
+        }
+        text = text.trim();
+        final int separator = text.lastIndexOf(':');
+        if (separator <= 0 || separator == text.length() - 1) {
+            return null;
+        }
+        final int port = parseNumber(text, separator + 1, text.length());
+        if (port < 1 || port > 65535) {
+            return null;
+        }
+        final String host = text.substring(0, separator);
+        final byte[] literal = parseIPv4(host);
+        if (literal == null && !isHostName(host)) {
+            return null;
+        }
+        return new BulbAddress(host, port, literal);
+    }
+
+    public static boolean isValid(String text) {
+        return parse(text) != null;
+    }
+
+    // Non-negative decimal number without sign or leading garbage, or -1
+    private static int parseNumber(String text, int start, int end) {
+        if (start >= end || end - start > 5) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            final char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static byte[] parseIPv4(String host) {
+        final byte[] address = new byte[4];
+        int start = 0;
+        for (int i = 0; i < 4; i++) {
+            int end = host.indexOf('.', start);
+            if (end == -1) {
+                if (i != 3) {
+                    return null;
+                }
+                end = host.length();
+            } else if (i == 3) {
+                return null;
+            }
+            if (end - start > 3) {
+                return null;
+            }
+            final int part = parseNumber(host, start, end);
+            if (part < 0 || part > 255) {
+                return null;
+            }
+            address[i] = (byte) part;
+            start = end + 1;
+        }
+        return address;
+    }
+
+    // RFC 1123 host name; an all-numeric last label would be a malformed IPv4 address instead
+    private static boolean isHostName(String host) {
+        if (host.isEmpty() || host.length() > MAX_HOST_LENGTH) {
+            return false;
+        }
+        final String[] labels = host.endsWith(".") ? host.substring(0, host.length() - 1).split("\\.", -1) : host.split("\\.", -1);
+        for (String label : labels) {
+            if (label.isEmpty() || label.length() > MAX_LABEL_LENGTH || label.charAt(0) == '-' || label.charAt(label.length() - 1) == '-') {
+                return false;
+            }
+            for (int i = 0; i < label.length(); i++) {
+                final char c = label.charAt(i);
+                if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-')) {
+                    return false;
+                }
+            }
+        }
+        final String last = labels[labels.length - 1];
+        for (int i = 0; i < last.length(); i++) {
+            if (last.charAt(i) < '0' || last.charAt(i) > '9') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public boolean isLiteral() {
+        return literal != null;
+    }
+
+    // Null for host names, which have to be resolved
+    public InetAddress toInetAddress() {
+        if (literal == null) {
+            return null;
+        }
+        try {
+            return InetAddress.getByAddress(literal);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof BulbAddress && host.equalsIgnoreCase(((BulbAddress) obj).host) && port == ((BulbAddress) obj).port;
+    }
+
+    @Override
+    public int hashCode() {
+        return host.toLowerCase().hashCode() * 31 + port;
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+
+}
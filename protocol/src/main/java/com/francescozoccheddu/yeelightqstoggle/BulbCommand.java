@@ -0,0 +1,165 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+public final class BulbCommand {
+
+    public static final int DEFAULT_SMOOTH_DURATION = 300;
+
+    // Setters whose effect is entirely replaced by a later call of the same method
+    private static final Set<String> SETTER_METHODS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "set_bright", "set_ct_abx", "set_rgb", "set_hsv", "set_name", "set_scene", "start_cf")));
+
+    public static BulbCommand toggle() {
+        return new BulbCommand("toggle");
+    }
+
+    public static BulbCommand setPower(boolean on, int smoothDuration) {
+        return new BulbCommand("set_power", on ? "on" : "off", smoothEffect(smoothDuration), smoothDuration);
+    }
+
+    public static BulbCommand setBright(int bright, int smoothDuration) {
+        checkRange(bright, 1, 100, "brightness");
+        return new BulbCommand("set_bright", bright, smoothEffect(smoothDuration), smoothDuration);
+    }
+
+    public static BulbCommand setColorTemperature(int colorTemperature, int smoothDuration) {
+        checkRange(colorTemperature, 1700, 6500, "color temperature");
+        return new BulbCommand("set_ct_abx", colorTemperature, smoothEffect(smoothDuration), smoothDuration);
+    }
+
+    public static BulbCommand setRgb(int rgb, int smoothDuration) {
+        checkRange(rgb, 0, 0xFFFFFF, "color");
+        return new BulbCommand("set_rgb", rgb, smoothEffect(smoothDuration), smoothDuration);
+    }
+
+    // Scenes switch the bulb on and set color and brightness in a single command
+    public static BulbCommand setColorScene(int rgb, int bright) {
+        checkRange(rgb, 0, 0xFFFFFF, "color");
+        checkRange(bright, 1, 100, "brightness");
+        return new BulbCommand("set_scene", "color", rgb, bright);
+    }
+
+    public static BulbCommand setColorTemperatureScene(int colorTemperature, int bright) {
+        checkRange(colorTemperature, 1700, 6500, "color temperature");
+        checkRange(bright, 1, 100, "brightness");
+        return new BulbCommand("set_scene", "ct", colorTemperature, bright);
+    }
+
+    // The flow expression is a comma separated list of duration, mode, value, brightness tuples
+    public static BulbCommand startColorFlow(int count, int action, String flowExpression) {
+        checkRange(count, 0, Integer.MAX_VALUE, "count");
+        checkRange(action, 0, 2, "action");
+        if (flowExpression == null || flowExpression.isEmpty()) {
+            throw new IllegalArgumentException("Empty flow expression");
+        }
+        return new BulbCommand("start_cf", count, action, flowExpression);
+    }
+
+    private static String smoothEffect(int smoothDuration) {
+        if (smoothDuration != 0 && smoothDuration < 30) {
+            throw new IllegalArgumentException("Smooth duration must be 0 or at least 30ms");
+        }
+        return smoothDuration > 0 ? "smooth" : "sudden";
+    }
+
+    private static void checkRange(int value, int min, int max, String name) {
+        if (value < min || value > max) {
+            throw new IllegalArgumentException("Invalid " + name + " " + value);
+        }
+    }
+
+    public static BulbCommand getProp(String... properties) {
+        return new BulbCommand("get_prop", (Object[]) properties);
+    }
+
+    private final String method;
+    private final Object[] params;
+
+    public BulbCommand(String method, Object... params) {
+        if (method == null || method.isEmpty()) {
+            throw new IllegalArgumentException("Empty method");
+        }
+        for (Object param : params) {
+            if (!(param instanceof String || param instanceof Number)) {
+                throw new IllegalArgumentException("Params must be strings or numbers");
+            }
+        }
+        this.method = method;
+        this.params = params.clone();
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public boolean isToggle() {
+        return method.equals("toggle");
+    }
+
+    public boolean isPowerChange() {
+        return method.equals("toggle") || method.equals("set_power");
+    }
+
+    // True if sending this command makes an older, still unsent one redundant
+    public boolean supersedes(BulbCommand older) {
+        if (method.equals("set_power")) {
+            return older.isPowerChange();
+        }
+        return SETTER_METHODS.contains(method) && method.equals(older.method);
+    }
+
+    public String toMessage(int id) {
+        final StringBuilder builder = new StringBuilder(64);
+        builder.append("{\"id\":").append(id).append(",\"method\":").append(quote(method)).append(",\"params\":[");
+        for (int i = 0; i < params.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            if (params[i] instanceof String) {
+                builder.append(quote((String) params[i]));
+            } else {
+                builder.append(params[i]);
+            }
+        }
+        return builder.append("]}\r\n").toString();
+    }
+
+    private static String quote(String string) {
+        final StringBuilder builder = new StringBuilder(string.length() + 2).append('"');
+        for (int i = 0; i < string.length(); i++) {
+            final char c = string.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                    builder.append('\\').append(c);
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+    @Override
+    public String toString() {
+        return method + Arrays.toString(params);
+    }
+
+}
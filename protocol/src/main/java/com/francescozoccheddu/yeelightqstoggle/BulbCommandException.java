@@ -0,0 +1,20 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import java.io.IOException;
+
+public class BulbCommandException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int code;
+
+    public BulbCommandException(int code, String message) {
+        super(message);
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+}
@@ -0,0 +1,462 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+public final class BulbConnectionPool {
+
+    private static final Logger logger = Logger.getLogger("BulbConnectionPool");
+
+    // At most one connection is pooled per bulb, since bulbs accept only a few concurrent LAN clients;
+    // beyond this many bulbs the least recently used connection is closed
+    private static final int MAX_POOLED_BULBS = 8;
+    private static final int CONNECT_TIMEOUT = 3000;
+    private static final int STATE_REQUEST_TIMEOUT = 3000;
+    private static final int READ_BUFFER_SIZE = 1024;
+    private static final int IDLE_TIMEOUT = 60000;
+
+    private static final BulbConnectionPool instance = new BulbConnectionPool();
+
+    public static BulbConnectionPool getInstance() {
+        return instance;
+    }
+
+    private final AtomicInteger lastRequestId = new AtomicInteger();
+
+    private final class Request {
+
+        private final int id;
+        private final BulbCommand command;
+        private final CompletableFuture<JSONArray> future = new CompletableFuture<>();
+        private final long createdAt = BulbMetrics.now();
+        private long sentAt;
+        private Connection connection;
+        private boolean retried = false;
+
+        private Request(BulbCommand command, int timeout) {
+            this.id = lastRequestId.updateAndGet(id -> id == Integer.MAX_VALUE ? 1 : id + 1);
+            this.command = command;
+            final BulbEventLoop loop = BulbEventLoop.getInstance();
+            final BulbEventLoop.Timeout timer = loop.schedule(
+                    () -> future.completeExceptionally(new SocketTimeoutException("Request " + command + " timed out")), timeout);
+            future.whenComplete((result, exception) -> {
+                timer.cancel();
+                if (exception != null) {
+                    BulbMetrics.getInstance().failure(exception);
+                }
+                loop.execute(() -> {
+                    if (connection != null) {
+                        connection.onRequestDone(this);
+                    }
+                });
+            });
+        }
+
+    }
+
+    // All the connection state is confined to the event loop thread
+    private final class Connection implements BulbEventLoop.ChannelHandler {
+
+        private final Bulb bulb;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final BulbEventLoop.Timeout connectTimer;
+        private final Map<Integer, Request> pending = new HashMap<>();
+        private final ArrayDeque<Request> unsent = new ArrayDeque<>();
+        private final List<Request> writing = new ArrayList<>();
+        private final long connectStart = BulbMetrics.now();
+        private final ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        // Completes when the TCP connection is established, or exceptionally if it never is
+        private final CompletableFuture<Void> ready = new CompletableFuture<>();
+        private ByteBuffer output;
+        private BulbEventLoop.Timeout idleTimer;
+        private boolean connected;
+        private boolean closed = false;
+        private boolean closeWhenIdle = false;
+
+        private Connection(Bulb bulb) throws IOException {
+            this.bulb = bulb;
+            channel = SocketChannel.open();
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setKeepAlive(true);
+                channel.socket().setTcpNoDelay(true);
+                BulbPlatform.getInstance().bindSocket(channel.socket());
+                connected = channel.connect(new InetSocketAddress(bulb.getInet(), bulb.getPort()));
+                key = BulbEventLoop.getInstance().register(channel, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+                if (connected) {
+                    BulbMetrics.getInstance().record(BulbMetrics.PHASE_CONNECT, connectStart);
+                    ready.complete(null);
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            connectTimer = connected ? null : BulbEventLoop.getInstance().schedule(() -> {
+                if (!connected) {
+                    close(new SocketTimeoutException("Connection to '" + bulb + "' timed out"));
+                }
+            }, CONNECT_TIMEOUT);
+            // Every new connection reads the state once; the request counts against the bulb quota like any command,
+            // so it is skipped when the quota is used up and the state is left to the notifications
+            if (BulbRateLimiter.getInstance().tryAcquire(bulb)) {
+                final Request stateRequest = new Request(BulbStateTracker.STATE_REQUEST, STATE_REQUEST_TIMEOUT);
+                stateRequest.future.thenAccept(result -> BulbStateTracker.getInstance().onProperties(bulb, result));
+                enqueue(stateRequest);
+            }
+        }
+
+        @Override
+        public void onReady(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    channel.finishConnect();
+                    connected = true;
+                    BulbMetrics.getInstance().record(BulbMetrics.PHASE_CONNECT, connectStart);
+                    connectTimer.cancel();
+                    ready.complete(null);
+                    key.interestOps(SelectionKey.OP_READ);
+                    flush();
+                    if (closeWhenIdle && pending.isEmpty()) {
+                        close(null);
+                        return;
+                    }
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush();
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        // Pooled connections are dropped after a while without traffic, since they also cost battery on the bulb side
+        private void touch() {
+            if (idleTimer != null) {
+                idleTimer.cancel();
+            }
+            idleTimer = BulbEventLoop.getInstance().schedule(() -> {
+                logger.fine("Connection to '" + bulb + "' idle");
+                closeWhenIdle();
+            }, IDLE_TIMEOUT);
+        }
+
+        private void enqueue(Request request) {
+            touch();
+            request.connection = this;
+            pending.put(request.id, request);
+            unsent.add(request);
+        }
+
+        // Writes all the unsent commands in a single burst, each one with its own request id
+        private void flush() throws IOException {
+            if (!connected || closed) {
+                return;
+            }
+            while (true) {
+                if (output == null) {
+                    if (unsent.isEmpty()) {
+                        break;
+                    }
+                    final StringBuilder burst = new StringBuilder();
+                    for (Request request : unsent) {
+                        burst.append(request.command.toMessage(request.id));
+                    }
+                    writing.addAll(unsent);
+                    unsent.clear();
+                    output = ByteBuffer.wrap(burst.toString().getBytes(StandardCharsets.UTF_8));
+                }
+                channel.write(output);
+                if (output.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                output = null;
+                final long now = BulbMetrics.now();
+                for (Request request : writing) {
+                    request.sentAt = now;
+                    BulbMetrics.getInstance().record(BulbMetrics.PHASE_WRITE, request.createdAt);
+                }
+                writing.clear();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        // Replies and unsolicited notifications are pushed by the bulb on the same socket, one per line
+        private void read() throws IOException {
+            while (true) {
+                input.clear();
+                final int read = channel.read(input);
+                if (read == -1) {
+                    close(new IOException("Connection closed by '" + bulb + "'"));
+                    return;
+                }
+                if (read == 0) {
+                    return;
+                }
+                input.flip();
+                while (input.hasRemaining()) {
+                    final byte b = input.get();
+                    if (b == '\n') {
+                        dispatch(new String(line.toByteArray(), StandardCharsets.UTF_8).trim());
+                        line.reset();
+                    } else {
+                        line.write(b);
+                    }
+                }
+            }
+        }
+
+        private void dispatch(String line) {
+            if (line.isEmpty()) {
+                return;
+            }
+            touch();
+            final JSONObject message;
+            try {
+                message = new JSONObject(line);
+            } catch (JSONException e) {
+                logger.fine("Bad message from '" + bulb + "'");
+                return;
+            }
+            if (message.has("id")) {
+                final Request request = pending.get(message.optInt("id", -1));
+                if (request != null) {
+                    if (request.sentAt != 0) {
+                        BulbMetrics.getInstance().record(BulbMetrics.PHASE_RESPONSE, request.sentAt);
+                    }
+                    final JSONArray result = message.optJSONArray("result");
+                    if (result != null) {
+                        request.future.complete(result);
+                    } else {
+                        final JSONObject error = message.optJSONObject("error");
+                        request.future.completeExceptionally(error != null
+                                ? new BulbCommandException(error.optInt("code", 0), error.optString("message", ""))
+                                : new BulbCommandException(0, "Malformed reply"));
+                    }
+                }
+            } else {
+                BulbStateTracker.getInstance().onNotification(bulb, message);
+            }
+        }
+
+        private void onRequestDone(Request request) {
+            if (request.connection == this) {
+                pending.remove(request.id);
+                unsent.remove(request);
+                if (closeWhenIdle && connected && pending.isEmpty()) {
+                    close(null);
+                }
+            }
+        }
+
+        private boolean isAlive() {
+            return !closed && channel.isOpen();
+        }
+
+        // A connection still being established is kept until it is, so that whoever waits for it
+        // learns whether the bulb is reachable rather than that we gave up on it
+        private void closeWhenIdle() {
+            closeWhenIdle = true;
+            if (connected && pending.isEmpty()) {
+                close(null);
+            }
+        }
+
+        private void close(IOException reason) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+            if (connectTimer != null) {
+                connectTimer.cancel();
+            }
+            if (idleTimer != null) {
+                idleTimer.cancel();
+            }
+            discard(this);
+            // A bulb that dropped the connection may be unreachable or may have been switched off at the wall,
+            // while an idle connection closed by us says nothing about its state
+            if (reason != null) {
+                BulbStateTracker.getInstance().forget(bulb);
+            }
+            if (reason == null) {
+                reason = new IOException("Connection closed");
+            }
+            ready.completeExceptionally(reason);
+            // Commands that never reached a connection that used to work are retried once on a new one
+            final List<Request> retry = new ArrayList<>();
+            for (Request request : new ArrayList<>(pending.values())) {
+                request.connection = null;
+                if (connected && !request.retried && unsent.contains(request) && request.command != BulbStateTracker.STATE_REQUEST) {
+                    request.retried = true;
+                    retry.add(request);
+                    BulbMetrics.getInstance().increment(BulbMetrics.COUNTER_RETRY);
+                } else {
+                    request.future.completeExceptionally(reason);
+                }
+            }
+            pending.clear();
+            unsent.clear();
+            writing.clear();
+            if (!retry.isEmpty()) {
+                logger.fine("Connection to '" + bulb + "' lost, retrying " + retry.size() + " commands");
+                send(bulb, retry);
+            }
+        }
+
+    }
+
+    private final Map<Bulb, Connection> connections = new LinkedHashMap<>(MAX_POOLED_BULBS, 0.75f, true);
+    private volatile boolean keepAlive = false;
+
+    private BulbConnectionPool() {
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        if (!keepAlive) {
+            closeAll();
+        }
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    // Never blocks; the returned futures complete with the bulb replies on the event loop thread
+    public List<CompletableFuture<JSONArray>> call(Bulb bulb, List<BulbCommand> commands, int timeout) {
+        final List<Request> requests = new ArrayList<>(commands.size());
+        final List<CompletableFuture<JSONArray>> futures = new ArrayList<>(commands.size());
+        for (BulbCommand command : commands) {
+            final Request request = new Request(command, timeout);
+            requests.add(request);
+            futures.add(request.future);
+        }
+        BulbEventLoop.getInstance().execute(() -> send(bulb, requests));
+        return futures;
+    }
+
+    // Completes once a connection to the bulb is established; the only command it sends is the state request
+    // of a new connection
+    public CompletableFuture<Void> connect(Bulb bulb) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        BulbEventLoop.getInstance().execute(() -> {
+            final Connection connection = send(bulb, Collections.emptyList());
+            if (connection == null) {
+                future.completeExceptionally(new IOException("Cannot connect to '" + bulb + "'"));
+                return;
+            }
+            connection.ready.whenComplete((result, exception) -> {
+                if (exception != null) {
+                    future.completeExceptionally(exception);
+                } else {
+                    future.complete(null);
+                }
+            });
+        });
+        return future;
+    }
+
+    private Connection send(Bulb bulb, List<Request> requests) {
+        Connection connection = get(bulb);
+        final boolean pooled = connection != null;
+        if (!pooled) {
+            try {
+                connection = new Connection(bulb);
+            } catch (IOException e) {
+                for (Request request : requests) {
+                    request.future.completeExceptionally(e);
+                }
+                return null;
+            }
+        }
+        for (Request request : requests) {
+            if (!request.future.isDone()) {
+                connection.enqueue(request);
+            }
+        }
+        if (!pooled) {
+            release(connection);
+        }
+        try {
+            connection.flush();
+        } catch (IOException e) {
+            connection.close(e);
+        }
+        return connection;
+    }
+
+    private Connection get(Bulb bulb) {
+        final Connection connection = connections.get(bulb);
+        if (connection != null && !connection.isAlive()) {
+            logger.fine("Dropping stale connection to '" + bulb + "'");
+            connections.remove(bulb);
+            return null;
+        }
+        return connection;
+    }
+
+    private void release(Connection connection) {
+        if (!keepAlive) {
+            connection.closeWhenIdle();
+            return;
+        }
+        final Connection old = connections.put(connection.bulb, connection);
+        if (old != null && old != connection) {
+            old.closeWhenIdle();
+        }
+        final Iterator<Map.Entry<Bulb, Connection>> iterator = connections.entrySet().iterator();
+        while (connections.size() > MAX_POOLED_BULBS && iterator.hasNext()) {
+            final Connection evicted = iterator.next().getValue();
+            iterator.remove();
+            evicted.closeWhenIdle();
+        }
+    }
+
+    private void discard(Connection connection) {
+        if (connections.get(connection.bulb) == connection) {
+            connections.remove(connection.bulb);
+        }
+    }
+
+    public void closeAll() {
+        BulbEventLoop.getInstance().execute(() -> {
+            for (Connection connection : new ArrayList<>(connections.values())) {
+                connection.close(null);
+            }
+            connections.clear();
+        });
+    }
+
+}
@@ -0,0 +1,200 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// A single daemon thread shared by every component for the whole process lifetime: nobody owns it, so nobody stops it,
+// and an idle loop costs nothing since it just blocks in select
+public final class BulbEventLoop {
+
+    public interface ChannelHandler {
+        void onReady(SelectionKey key);
+    }
+
+    public interface Timeout {
+        void cancel();
+    }
+
+    private static final Logger logger = Logger.getLogger("BulbEventLoop");
+
+    private static final long TICK_MILLIS = 10;
+    private static final int WHEEL_SIZE = 512;
+
+    private static BulbEventLoop instance;
+
+    public static synchronized BulbEventLoop getInstance() {
+        if (instance == null) {
+            instance = new BulbEventLoop();
+        }
+        return instance;
+    }
+
+    private final class TimerTask implements Timeout {
+
+        private final Runnable task;
+        private volatile boolean cancelled = false;
+        private int slot = -1;
+        private long rounds;
+
+        private TimerTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            execute(() -> {
+                if (slot != -1 && wheel.get(slot).remove(this)) {
+                    timerCount--;
+                }
+            });
+        }
+
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    // Hashed timer wheel, only touched by the loop thread
+    private final List<List<TimerTask>> wheel = new ArrayList<>(WHEEL_SIZE);
+    private int cursor = 0;
+    private long nextTick;
+    private int timerCount = 0;
+
+    private BulbEventLoop() {
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new ArrayList<>(2));
+        }
+        thread = new Thread(this::run, "BulbEventLoop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void execute(Runnable task) {
+        if (inLoop()) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    public Timeout schedule(Runnable task, long delayMillis) {
+        final long ticks = Math.max(1, (delayMillis + TICK_MILLIS - 1) / TICK_MILLIS);
+        final TimerTask timer = new TimerTask(task);
+        execute(() -> {
+            if (timer.cancelled) {
+                return;
+            }
+            if (timerCount == 0) {
+                nextTick = now() + TICK_MILLIS;
+            }
+            timer.slot = (int) ((cursor + ticks) % WHEEL_SIZE);
+            timer.rounds = (ticks - 1) / WHEEL_SIZE;
+            timerCount++;
+            wheel.get(timer.slot).add(timer);
+        });
+        return timer;
+    }
+
+    // Must be called from the loop thread
+    public SelectionKey register(SelectableChannel channel, int ops, ChannelHandler handler) throws ClosedChannelException {
+        if (!inLoop()) {
+            throw new IllegalStateException("Not on the event loop thread");
+        }
+        return channel.register(selector, ops, handler);
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000L;
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                selector.select(timerCount > 0 ? Math.max(1, nextTick - now()) : 0);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Select failed", e);
+                break;
+            }
+            final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                final SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid()) {
+                    invoke(() -> ((ChannelHandler) key.attachment()).onReady(key));
+                }
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                invoke(task);
+            }
+            advanceTimers();
+        }
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void advanceTimers() {
+        final long now = now();
+        while (timerCount > 0 && now >= nextTick) {
+            cursor = (cursor + 1) % WHEEL_SIZE;
+            nextTick += TICK_MILLIS;
+            final List<TimerTask> slot = wheel.get(cursor);
+            final List<TimerTask> expired = new ArrayList<>();
+            final Iterator<TimerTask> iterator = slot.iterator();
+            while (iterator.hasNext()) {
+                final TimerTask timer = iterator.next();
+                if (timer.rounds == 0) {
+                    iterator.remove();
+                    timerCount--;
+                    expired.add(timer);
+                } else {
+                    timer.rounds--;
+                }
+            }
+            for (TimerTask timer : expired) {
+                if (!timer.cancelled) {
+                    invoke(timer.task);
+                }
+            }
+        }
+    }
+
+    private static void invoke(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Task failed", e);
+        }
+    }
+
+}
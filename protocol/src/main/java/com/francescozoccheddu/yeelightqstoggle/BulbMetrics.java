@@ -0,0 +1,136 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class BulbMetrics {
+
+    public static final String PHASE_PARSE = "parse";
+    public static final String PHASE_DISCOVERY = "discovery";
+    public static final String PHASE_CONNECT = "connect";
+    public static final String PHASE_WRITE = "write";
+    public static final String PHASE_RESPONSE = "response";
+    public static final String PHASE_TOGGLE = "toggle";
+    public static final String PHASE_TILE_UPDATE = "tile_update";
+    public static final String PHASE_COLD_START = "cold_start";
+
+    public static final String COUNTER_CACHE_HIT = "cache_hit";
+    public static final String COUNTER_CACHE_MISS = "cache_miss";
+    public static final String COUNTER_RETRY = "retry";
+    public static final String COUNTER_COALESCED = "coalesced";
+    public static final String COUNTER_DISCOVERY_TIMEOUT = "discovery_timeout";
+    public static final String COUNTER_SWEEP = "sweep";
+    private static final String COUNTER_FAILURE_PREFIX = "failure.";
+
+    private static final BulbMetrics instance = new BulbMetrics();
+
+    public static BulbMetrics getInstance() {
+        return instance;
+    }
+
+    // Power-of-two buckets over microseconds, so recording is a single atomic increment
+    public static final class Histogram {
+
+        private static final int BUCKETS = 32;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        private void record(long micros) {
+            micros = Math.max(micros, 0);
+            final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.increment();
+            sum.add(micros);
+            max.accumulateAndGet(micros, Math::max);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getMeanMicros() {
+            final long count = getCount();
+            return count > 0 ? sum.sum() / count : 0;
+        }
+
+        public long getMaxMicros() {
+            return max.get();
+        }
+
+        // Upper bound of the bucket containing the given quantile
+        public long getPercentileMicros(double quantile) {
+            final long count = getCount();
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(i == 0 ? 0 : (1L << i) - 1, getMaxMicros());
+                }
+            }
+            return getMaxMicros();
+        }
+
+    }
+
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private BulbMetrics() {
+    }
+
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    public void record(String phase, long startNanos) {
+        histograms.computeIfAbsent(phase, key -> new Histogram()).record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    public void increment(String counter) {
+        counters.computeIfAbsent(counter, key -> new LongAdder()).increment();
+    }
+
+    public void failure(Throwable exception) {
+        while (exception.getCause() != null && exception.getClass().getName().startsWith("java.util.concurrent")) {
+            exception = exception.getCause();
+        }
+        increment(COUNTER_FAILURE_PREFIX + exception.getClass().getSimpleName());
+    }
+
+    public void reset() {
+        histograms.clear();
+        counters.clear();
+    }
+
+    public String dump() {
+        final StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            final Histogram histogram = entry.getValue();
+            builder.append(String.format(Locale.ROOT, "%s: n=%d mean=%.1fms p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms\n",
+                    entry.getKey(),
+                    histogram.getCount(),
+                    histogram.getMeanMicros() / 1000f,
+                    histogram.getPercentileMicros(0.5) / 1000f,
+                    histogram.getPercentileMicros(0.9) / 1000f,
+                    histogram.getPercentileMicros(0.99) / 1000f,
+                    histogram.getMaxMicros() / 1000f));
+        }
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            builder.append(entry.getKey()).append(": ").append(entry.getValue().sum()).append('\n');
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,244 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+// In music mode the bulb connects back to us and accepts commands with no quota and no replies
+public final class BulbMusicSession {
+
+    public interface Listener {
+        void onStarted();
+
+        void onStopped(Exception exception);
+    }
+
+    private static final Logger logger = Logger.getLogger("BulbMusicSession");
+
+    public static final int MAX_FRAME_RATE = 60;
+
+    private static final int ACCEPT_TIMEOUT = 5000;
+
+    private final Bulb bulb;
+    private final long frameIntervalNanos;
+    private final Listener listener;
+    private final Executor callbacks = BulbPlatform.getInstance().getCallbackExecutor();
+    // Only the latest frame of each method is kept, older ones are stale by the time they could be sent
+    private final Map<String, BulbCommand> frames = new LinkedHashMap<>();
+    // Only touched by the event loop thread
+    private ServerSocketChannel server;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer output;
+    private BulbEventLoop.Timeout timer;
+    private long nextFrame;
+    private int lastId = 0;
+    private boolean closed = false;
+    private volatile boolean streaming = false;
+
+    BulbMusicSession(Bulb bulb, int frameRate, Listener listener) {
+        if (frameRate < 1 || frameRate > MAX_FRAME_RATE) {
+            throw new IllegalArgumentException("Frame rate must be between 1 and " + MAX_FRAME_RATE);
+        }
+        this.bulb = bulb;
+        this.frameIntervalNanos = 1_000_000_000L / frameRate;
+        this.listener = listener;
+        BulbEventLoop.getInstance().execute(this::listen);
+    }
+
+    private void listen() {
+        final BulbEventLoop loop = BulbEventLoop.getInstance();
+        try {
+            final InetAddress localAddress = getLocalAddress(bulb);
+            server = ServerSocketChannel.open();
+            server.configureBlocking(false);
+            server.bind(new InetSocketAddress(localAddress, 0));
+            loop.register(server, SelectionKey.OP_ACCEPT, key -> accept());
+            timer = loop.schedule(() -> stop(new SocketTimeoutException("Bulb '" + bulb + "' did not connect back")), ACCEPT_TIMEOUT);
+        } catch (IOException e) {
+            stop(e);
+            return;
+        }
+        final BulbCommand command = new BulbCommand("set_music", 1, server.socket().getInetAddress().getHostAddress(), server.socket().getLocalPort());
+        BulbRateLimiter.getInstance().call(bulb, Collections.singletonList(command), Bulb.DEFAULT_COMMAND_TIMEOUT).get(0)
+                .whenComplete((result, exception) -> {
+                    if (exception != null) {
+                        final Throwable cause = exception instanceof CompletionException && exception.getCause() != null ? exception.getCause() : exception;
+                        loop.execute(() -> stop(cause instanceof Exception ? (Exception) cause : new Exception(cause)));
+                    }
+                });
+        logger.fine("Waiting for '" + bulb + "' on " + server.socket().getLocalSocketAddress());
+    }
+
+    // The address of the interface the bulb can reach us on
+    private static InetAddress getLocalAddress(Bulb bulb) throws IOException {
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            probe.connect(new InetSocketAddress(bulb.getInet(), bulb.getPort()));
+            return ((InetSocketAddress) probe.getLocalAddress()).getAddress();
+        }
+    }
+
+    private void accept() {
+        try {
+            final SocketChannel channel = server.accept();
+            if (channel == null) {
+                return;
+            }
+            if (!((InetSocketAddress) channel.getRemoteAddress()).getAddress().equals(bulb.getInet())) {
+                channel.close();
+                return;
+            }
+            closeServer();
+            timer.cancel();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            this.channel = channel;
+            key = BulbEventLoop.getInstance().register(channel, SelectionKey.OP_READ, key -> onReady());
+        } catch (IOException e) {
+            stop(e);
+            return;
+        }
+        streaming = true;
+        nextFrame = System.nanoTime();
+        scheduleFrame();
+        if (listener != null) {
+            callbacks.execute(listener::onStarted);
+        }
+        logger.fine("Streaming to '" + bulb + "'");
+    }
+
+    private void onReady() {
+        try {
+            if (key.isReadable()) {
+                // The bulb never talks in music mode, so anything readable is the end of the stream
+                final ByteBuffer discard = ByteBuffer.allocate(256);
+                if (channel.read(discard) == -1) {
+                    stop(new IOException("Connection closed by '" + bulb + "'"));
+                    return;
+                }
+            }
+            if (key.isValid() && key.isWritable()) {
+                write();
+            }
+        } catch (IOException e) {
+            stop(e);
+        }
+    }
+
+    // Frames are due on absolute deadlines, since the loop timers are coarser than a frame at high rates:
+    // single delays would all round up, while deadlines make the early and late frames average out to the rate
+    private void scheduleFrame() {
+        final long now = System.nanoTime();
+        nextFrame += frameIntervalNanos;
+        if (nextFrame < now) {
+            // Too late to catch up, e.g. after the device slept
+            nextFrame = now + frameIntervalNanos;
+        }
+        timer = BulbEventLoop.getInstance().schedule(() -> {
+            if (!closed) {
+                sendFrame();
+                scheduleFrame();
+            }
+        }, (nextFrame - now) / 1_000_000L);
+    }
+
+    private void sendFrame() {
+        // Back-pressure: while the previous frame is still being written, new frames keep replacing the pending ones
+        if (output != null) {
+            return;
+        }
+        final List<BulbCommand> commands;
+        synchronized (frames) {
+            if (frames.isEmpty()) {
+                return;
+            }
+            commands = new ArrayList<>(frames.values());
+            frames.clear();
+        }
+        final StringBuilder burst = new StringBuilder();
+        for (BulbCommand command : commands) {
+            lastId = lastId == Integer.MAX_VALUE ? 1 : lastId + 1;
+            burst.append(command.toMessage(lastId));
+        }
+        output = ByteBuffer.wrap(burst.toString().getBytes(StandardCharsets.UTF_8));
+        try {
+            write();
+        } catch (IOException e) {
+            stop(e);
+        }
+    }
+
+    private void write() throws IOException {
+        channel.write(output);
+        if (output.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } else {
+            output = null;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    // Can be called from any thread at any rate; frames are sent at the session frame rate at most
+    public void submit(BulbCommand command) {
+        synchronized (frames) {
+            frames.remove(command.getMethod());
+            frames.put(command.getMethod(), command);
+        }
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public void close() {
+        BulbEventLoop.getInstance().execute(() -> stop(null));
+    }
+
+    private void closeServer() {
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+            }
+            server = null;
+        }
+    }
+
+    private void stop(Exception exception) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        streaming = false;
+        if (timer != null) {
+            timer.cancel();
+        }
+        closeServer();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+        if (listener != null) {
+            callbacks.execute(() -> listener.onStopped(exception));
+        }
+        logger.fine("Session with '" + bulb + "' stopped");
+    }
+
+}
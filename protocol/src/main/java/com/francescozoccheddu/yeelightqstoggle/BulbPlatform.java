@@ -0,0 +1,71 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+// What the protocol code needs from the platform it runs on. The defaults fit a plain JVM, where listeners are
+// called on the event loop thread and sockets use the default route; the app installs its own at startup.
+public class BulbPlatform {
+
+    public static final class Subnet {
+
+        private final InetAddress address;
+        private final int prefixLength;
+
+        public Subnet(InetAddress address, int prefixLength) {
+            this.address = address;
+            this.prefixLength = prefixLength;
+        }
+
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        public int getPrefixLength() {
+            return prefixLength;
+        }
+
+    }
+
+    private static volatile BulbPlatform instance = new BulbPlatform();
+
+    public static BulbPlatform getInstance() {
+        return instance;
+    }
+
+    // Must be called before any bulb is contacted
+    public static void install(BulbPlatform platform) {
+        if (platform == null) {
+            throw new IllegalArgumentException("Null platform");
+        }
+        instance = platform;
+    }
+
+    // Called on the thread that starts an operation: its listener is then called back through the returned executor
+    public Executor getCallbackExecutor() {
+        return Runnable::run;
+    }
+
+    // Runs the listeners of shared components, such as the state tracker
+    public Executor getMainExecutor() {
+        return Runnable::run;
+    }
+
+    // Binds the socket to the network the bulbs are on, before it connects
+    public void bindSocket(Socket socket) throws IOException {
+    }
+
+    // Identifies the current network across reconnections, so that what is learnt about it can be kept per network
+    public String getNetworkKey() {
+        return null;
+    }
+
+    // The local subnets of the current network, or null to take them from the multicast interfaces
+    public List<Subnet> getSubnets() {
+        return null;
+    }
+
+}
@@ -0,0 +1,126 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public final class BulbPreset {
+
+    public static final int UNSET = -1;
+
+    private static final String SEPARATOR = "|";
+
+    private final String name;
+    private final int bright;
+    private final int colorTemperature;
+    private final int rgb;
+
+    public BulbPreset(String name, int bright, int colorTemperature, int rgb) {
+        if (name == null || name.trim().isEmpty() || name.contains(SEPARATOR) || name.contains("\n")) {
+            throw new IllegalArgumentException("Invalid preset name");
+        }
+        if (bright != UNSET && (bright < 1 || bright > 100)) {
+            throw new IllegalArgumentException("Invalid brightness " + bright);
+        }
+        if (colorTemperature != UNSET && (colorTemperature < 1700 || colorTemperature > 6500)) {
+            throw new IllegalArgumentException("Invalid color temperature " + colorTemperature);
+        }
+        if (rgb != UNSET && (rgb < 0 || rgb > 0xFFFFFF)) {
+            throw new IllegalArgumentException("Invalid color " + rgb);
+        }
+        if (colorTemperature != UNSET && rgb != UNSET) {
+            throw new IllegalArgumentException("A preset cannot set both color temperature and color");
+        }
+        if (bright == UNSET && colorTemperature == UNSET && rgb == UNSET) {
+            throw new IllegalArgumentException("Empty preset");
+        }
+        this.name = name.trim();
+        this.bright = bright;
+        this.colorTemperature = colorTemperature;
+        this.rgb = rgb;
+    }
+
+    // Null if the state does not carry a brightness; the color is kept only in the mode it is lit in,
+    // so a HSV or unknown mode saves the brightness alone
+    public static BulbPreset fromState(String name, BulbState state) {
+        if (state.getBright() < 1) {
+            return null;
+        }
+        final int colorTemperature = state.getColorMode() == BulbState.COLOR_MODE_CT
+                && state.getColorTemperature() >= 1700 && state.getColorTemperature() <= 6500 ? state.getColorTemperature() : UNSET;
+        final int rgb = state.getColorMode() == BulbState.COLOR_MODE_RGB
+                && state.getRgb() >= 0 && state.getRgb() <= 0xFFFFFF ? state.getRgb() : UNSET;
+        return new BulbPreset(name, state.getBright(), colorTemperature, rgb);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getBright() {
+        return bright;
+    }
+
+    public int getColorTemperature() {
+        return colorTemperature;
+    }
+
+    public int getRgb() {
+        return rgb;
+    }
+
+    // A single set_scene when possible, otherwise one burst to be pipelined on the same connection
+    public List<BulbCommand> toCommands(int smoothDuration) {
+        if (bright != UNSET && colorTemperature != UNSET) {
+            return Collections.singletonList(BulbCommand.setColorTemperatureScene(colorTemperature, bright));
+        }
+        if (bright != UNSET && rgb != UNSET) {
+            return Collections.singletonList(BulbCommand.setColorScene(rgb, bright));
+        }
+        final List<BulbCommand> commands = new ArrayList<>(2);
+        commands.add(BulbCommand.setPower(true, smoothDuration));
+        if (bright != UNSET) {
+            commands.add(BulbCommand.setBright(bright, smoothDuration));
+        }
+        if (colorTemperature != UNSET) {
+            commands.add(BulbCommand.setColorTemperature(colorTemperature, smoothDuration));
+        }
+        if (rgb != UNSET) {
+            commands.add(BulbCommand.setRgb(rgb, smoothDuration));
+        }
+        return commands;
+    }
+
+    public String encode() {
+        return name + SEPARATOR + bright + SEPARATOR + colorTemperature + SEPARATOR + rgb;
+    }
+
+    // Null if the string is not a valid encoded preset
+    public static BulbPreset decode(String encoded) {
+        final String[] fields = encoded.split("\\" + SEPARATOR);
+        if (fields.length != 4) {
+            return null;
+        }
+        try {
+            return new BulbPreset(fields[0], Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), Integer.parseInt(fields[3]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof BulbPreset && name.equals(((BulbPreset) obj).name);
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
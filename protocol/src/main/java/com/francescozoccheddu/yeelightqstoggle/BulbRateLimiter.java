@@ -0,0 +1,214 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import org.json.JSONArray;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+public final class BulbRateLimiter {
+
+    private static final Logger logger = Logger.getLogger("BulbRateLimiter");
+
+    // Yeelight drops commands beyond 60 per minute on each bulb; we stay below it to leave room for state requests
+    private static final int BUCKET_CAPACITY = 5;
+    private static final long TOKEN_INTERVAL_NANOS = 1_200_000_000L;
+    // Commands beyond it are failed instead of waiting behind minutes of backlog
+    private static final int MAX_QUEUED = 8;
+
+    private static final BulbRateLimiter instance = new BulbRateLimiter();
+
+    public static BulbRateLimiter getInstance() {
+        return instance;
+    }
+
+    private static final class Queued {
+
+        private final BulbCommand command;
+        private final long deadline;
+        private final CompletableFuture<JSONArray> future = new CompletableFuture<>();
+
+        // The timeout runs from when the command is issued, however long it waits for the quota
+        private Queued(BulbCommand command, int timeout) {
+            this.command = command;
+            this.deadline = System.nanoTime() + timeout * 1_000_000L;
+            final BulbEventLoop.Timeout timer = BulbEventLoop.getInstance().schedule(
+                    () -> future.completeExceptionally(new SocketTimeoutException("Request " + command + " timed out")), timeout);
+            future.whenComplete((result, exception) -> timer.cancel());
+        }
+
+        private int getRemainingTimeout() {
+            return (int) Math.max((deadline - System.nanoTime()) / 1_000_000L, 1);
+        }
+
+        private void completeWith(CompletableFuture<JSONArray> other) {
+            other.whenComplete((result, exception) -> {
+                if (exception == null) {
+                    future.complete(result);
+                } else {
+                    future.completeExceptionally(exception);
+                }
+            });
+        }
+
+    }
+
+    private final class Bucket {
+
+        private final Bulb bulb;
+        private final LinkedList<Queued> queue = new LinkedList<>();
+        private int tokens = BUCKET_CAPACITY;
+        private long lastRefill = System.nanoTime();
+        private boolean flushScheduled = false;
+
+        private Bucket(Bulb bulb) {
+            this.bulb = bulb;
+        }
+
+        private void refill() {
+            final long now = System.nanoTime();
+            final long earned = (now - lastRefill) / TOKEN_INTERVAL_NANOS;
+            if (earned > 0) {
+                tokens = (int) Math.min(BUCKET_CAPACITY, tokens + earned);
+                lastRefill = tokens == BUCKET_CAPACITY ? now : lastRefill + earned * TOKEN_INTERVAL_NANOS;
+            }
+        }
+
+        private void enqueue(Queued queued) {
+            final BulbCommand command = queued.command;
+            // Timed out commands only wait to be skipped
+            queue.removeIf(older -> older.future.isDone());
+            if (command.isToggle()) {
+                // Two pending toggles cancel out
+                final Iterator<Queued> iterator = queue.descendingIterator();
+                while (iterator.hasNext()) {
+                    final Queued older = iterator.next();
+                    if (older.command.isPowerChange()) {
+                        if (older.command.isToggle()) {
+                            iterator.remove();
+                            final JSONArray ok = new JSONArray().put("ok");
+                            older.future.complete(ok);
+                            queued.future.complete(ok);
+                            BulbMetrics.getInstance().increment(BulbMetrics.COUNTER_COALESCED);
+                            logger.fine("Cancelled pending toggles on '" + bulb + "'");
+                            return;
+                        }
+                        break;
+                    }
+                }
+            } else {
+                final Iterator<Queued> iterator = queue.iterator();
+                while (iterator.hasNext()) {
+                    final Queued older = iterator.next();
+                    if (command.supersedes(older.command)) {
+                        iterator.remove();
+                        older.completeWith(queued.future);
+                        BulbMetrics.getInstance().increment(BulbMetrics.COUNTER_COALESCED);
+                        logger.fine("Coalesced pending " + older.command + " on '" + bulb + "'");
+                    }
+                }
+            }
+            if (queue.size() >= MAX_QUEUED) {
+                queued.future.completeExceptionally(new RejectedExecutionException("Too many commands queued for '" + bulb + "'"));
+                return;
+            }
+            queue.add(queued);
+        }
+
+        private List<Queued> drain() {
+            refill();
+            final List<Queued> ready = new ArrayList<>();
+            while (tokens > 0 && !queue.isEmpty()) {
+                final Queued queued = queue.poll();
+                if (!queued.future.isDone()) {
+                    ready.add(queued);
+                    tokens--;
+                }
+            }
+            if (!queue.isEmpty() && !flushScheduled) {
+                flushScheduled = true;
+                final long delay = (lastRefill + TOKEN_INTERVAL_NANOS - System.nanoTime()) / 1_000_000L;
+                BulbEventLoop.getInstance().schedule(this::flush, Math.max(delay, 1));
+            }
+            return ready;
+        }
+
+        private void flush() {
+            final List<Queued> ready;
+            synchronized (this) {
+                flushScheduled = false;
+                ready = drain();
+            }
+            send(bulb, ready);
+        }
+
+    }
+
+    private final Map<Bulb, Bucket> buckets = new HashMap<>();
+
+    private BulbRateLimiter() {
+    }
+
+    private synchronized Bucket getBucket(Bulb bulb) {
+        Bucket bucket = buckets.get(bulb);
+        if (bucket == null) {
+            bucket = new Bucket(bulb);
+            buckets.put(bulb, bucket);
+        }
+        return bucket;
+    }
+
+    // Takes a token for a command sent outside of the limiter, only if it would not delay any queued command
+    public boolean tryAcquire(Bulb bulb) {
+        final Bucket bucket = getBucket(bulb);
+        synchronized (bucket) {
+            bucket.refill();
+            if (bucket.tokens > 0 && bucket.queue.isEmpty()) {
+                bucket.tokens--;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    // Sends as many commands as the quota allows right away and defers the rest, coalescing redundant ones
+    public List<CompletableFuture<JSONArray>> call(Bulb bulb, List<BulbCommand> commands, int timeout) {
+        final Bucket bucket = getBucket(bulb);
+        final List<CompletableFuture<JSONArray>> futures = new ArrayList<>(commands.size());
+        final List<Queued> ready;
+        synchronized (bucket) {
+            for (BulbCommand command : commands) {
+                final Queued queued = new Queued(command, timeout);
+                futures.add(queued.future);
+                bucket.enqueue(queued);
+            }
+            ready = bucket.drain();
+        }
+        send(bulb, ready);
+        return futures;
+    }
+
+    private static void send(Bulb bulb, List<Queued> ready) {
+        if (ready.isEmpty()) {
+            return;
+        }
+        final List<BulbCommand> commands = new ArrayList<>(ready.size());
+        int timeout = 0;
+        for (Queued queued : ready) {
+            commands.add(queued.command);
+            timeout = Math.max(timeout, queued.getRemainingTimeout());
+        }
+        final List<CompletableFuture<JSONArray>> replies = BulbConnectionPool.getInstance().call(bulb, commands, timeout);
+        for (int i = 0; i < ready.size(); i++) {
+            ready.get(i).completeWith(replies.get(i));
+        }
+    }
+
+}
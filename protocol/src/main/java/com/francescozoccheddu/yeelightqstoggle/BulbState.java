@@ -0,0 +1,80 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+public final class BulbState {
+
+    public static final int UNKNOWN = -1;
+
+    // Bulbs report both the color temperature and the color in every mode, the mode tells which one is lit
+    public static final int COLOR_MODE_RGB = 1;
+    public static final int COLOR_MODE_CT = 2;
+    public static final int COLOR_MODE_HSV = 3;
+
+    public static final BulbState UNKNOWN_STATE = new BulbState(UNKNOWN, UNKNOWN, UNKNOWN, UNKNOWN, UNKNOWN);
+
+    private final int power;
+    private final int bright;
+    private final int colorMode;
+    private final int colorTemperature;
+    private final int rgb;
+
+    public BulbState(int power, int bright, int colorMode, int colorTemperature, int rgb) {
+        this.power = power;
+        this.bright = bright;
+        this.colorMode = colorMode;
+        this.colorTemperature = colorTemperature;
+        this.rgb = rgb;
+    }
+
+    public BulbState merge(BulbState update) {
+        return new BulbState(
+                update.power != UNKNOWN ? update.power : power,
+                update.bright != UNKNOWN ? update.bright : bright,
+                update.colorMode != UNKNOWN ? update.colorMode : colorMode,
+                update.colorTemperature != UNKNOWN ? update.colorTemperature : colorTemperature,
+                update.rgb != UNKNOWN ? update.rgb : rgb);
+    }
+
+    public boolean hasPower() {
+        return power != UNKNOWN;
+    }
+
+    public boolean isOn() {
+        return power == 1;
+    }
+
+    public int getBright() {
+        return bright;
+    }
+
+    public int getColorMode() {
+        return colorMode;
+    }
+
+    public int getColorTemperature() {
+        return colorTemperature;
+    }
+
+    public int getRgb() {
+        return rgb;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof BulbState)) {
+            return false;
+        }
+        final BulbState other = (BulbState) obj;
+        return power == other.power && bright == other.bright && colorMode == other.colorMode && colorTemperature == other.colorTemperature && rgb == other.rgb;
+    }
+
+    @Override
+    public int hashCode() {
+        return (((power * 31 + bright) * 31 + colorMode) * 31 + colorTemperature) * 31 + rgb;
+    }
+
+    @Override
+    public String toString() {
+        return "power=" + power +  " bright=" + bright + " mode=" + colorMode + " ct=" + colorTemperature + " rgb=" + rgb;
+    }
+
+}
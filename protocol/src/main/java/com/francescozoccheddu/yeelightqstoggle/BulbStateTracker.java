@@ -0,0 +1,149 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+public final class BulbStateTracker {
+
+    public interface StateListener {
+        void onStateChanged(Bulb bulb, BulbState state);
+    }
+
+    private static final Logger logger = Logger.getLogger("BulbStateTracker");
+
+    private static final String[] PROPERTIES = {"power", "bright", "color_mode", "ct", "rgb"};
+
+    static final BulbCommand STATE_REQUEST = BulbCommand.getProp(PROPERTIES);
+
+    private static final BulbStateTracker instance = new BulbStateTracker();
+
+    public static BulbStateTracker getInstance() {
+        return instance;
+    }
+
+    private final Map<Bulb, BulbState> states = new HashMap<>();
+    // Listeners are called through the platform main executor
+    private final CopyOnWriteArrayList<StateListener> listeners = new CopyOnWriteArrayList<>();
+
+    private BulbStateTracker() {
+    }
+
+    public void addListener(StateListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(StateListener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized BulbState getState(Bulb bulb) {
+        final BulbState state = states.get(bulb);
+        return state != null ? state : BulbState.UNKNOWN_STATE;
+    }
+
+    // TRUE if any bulb is known to be on, FALSE if all of them are known to be off, null otherwise
+    public synchronized Boolean isAnyOn(Collection<Bulb> bulbs) {
+        boolean allKnown = !bulbs.isEmpty();
+        for (Bulb bulb : bulbs) {
+            final BulbState state = getState(bulb);
+            if (state.hasPower()) {
+                if (state.isOn()) {
+                    return Boolean.TRUE;
+                }
+            } else {
+                allKnown = false;
+            }
+        }
+        return allKnown ? Boolean.FALSE : null;
+    }
+
+    public void update(Bulb bulb, BulbState update) {
+        final BulbState state;
+        synchronized (this) {
+            final BulbState old = getState(bulb);
+            state = old.merge(update);
+            if (state.equals(old)) {
+                return;
+            }
+            states.put(bulb, state);
+        }
+        logger.fine("State of '" + bulb + "' changed to " + state);
+        BulbPlatform.getInstance().getMainExecutor().execute(() -> {
+            for (StateListener listener : listeners) {
+                listener.onStateChanged(bulb, state);
+            }
+        });
+    }
+
+    public void forget(Bulb bulb) {
+        synchronized (this) {
+            if (states.remove(bulb) == null) {
+                return;
+            }
+        }
+        BulbPlatform.getInstance().getMainExecutor().execute(() -> {
+            for (StateListener listener : listeners) {
+                listener.onStateChanged(bulb, BulbState.UNKNOWN_STATE);
+            }
+        });
+    }
+
+    // Drops every state without notifying, e.g. when the network changes and the tiles are redrawn anyway
+    public synchronized void clear() {
+        states.clear();
+    }
+
+    public void onNotification(Bulb bulb, JSONObject message) {
+        if ("props".equals(message.optString("method"))) {
+            final JSONObject params = message.optJSONObject("params");
+            if (params != null) {
+                update(bulb, new BulbState(
+                        parsePower(params.optString(PROPERTIES[0], null)),
+                        parseInt(params.opt(PROPERTIES[1])),
+                        parseInt(params.opt(PROPERTIES[2])),
+                        parseInt(params.opt(PROPERTIES[3])),
+                        parseInt(params.opt(PROPERTIES[4]))));
+            }
+        }
+    }
+
+    public void onProperties(Bulb bulb, JSONArray result) {
+        if (result.length() == PROPERTIES.length) {
+            update(bulb, new BulbState(
+                    parsePower(result.optString(0, null)),
+                    parseInt(result.opt(1)),
+                    parseInt(result.opt(2)),
+                    parseInt(result.opt(3)),
+                    parseInt(result.opt(4))));
+        }
+    }
+
+    private static int parsePower(String value) {
+        if ("on".equals(value)) {
+            return 1;
+        } else if ("off".equals(value)) {
+            return 0;
+        } else {
+            return BulbState.UNKNOWN;
+        }
+    }
+
+    private static int parseInt(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        } else if (value instanceof String) {
+            try {
+                return Integer.parseInt((String) value);
+            } catch (NumberFormatException e) {
+            }
+        }
+        return BulbState.UNKNOWN;
+    }
+
+}
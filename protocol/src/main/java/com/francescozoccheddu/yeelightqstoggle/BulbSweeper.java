@@ -0,0 +1,233 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+// Finds bulbs on networks that filter multicast by probing the control port of every address in the local subnet
+// Everything runs on the event loop thread, listeners included
+final class BulbSweeper {
+
+    interface Listener {
+        void onFound(Bulb bulb);
+
+        void onFinished();
+    }
+
+    private static final Logger logger = Logger.getLogger("BulbSweeper");
+
+    static final int PORT = 55443;
+
+    // Larger subnets are only swept around our own address
+    private static final int MIN_PREFIX_LENGTH = 24;
+    private static final int MAX_IN_FLIGHT = 128;
+    // Hosts on the LAN accept or refuse within a few milliseconds, silence means nobody is there
+    private static final int CONNECT_TIMEOUT = 300;
+    private static final int CONFIRM_TIMEOUT = 500;
+    private static final int PROBE_ID = 1;
+    private static final byte[] PROBE = BulbCommand.getProp("power").toMessage(PROBE_ID).getBytes(StandardCharsets.UTF_8);
+
+    private final Listener listener;
+    private final ArrayDeque<InetAddress> targets = new ArrayDeque<>();
+    private final Set<Probe> probes = new HashSet<>();
+    private boolean stopped = false;
+    private long startTime;
+
+    BulbSweeper(Listener listener) {
+        this.listener = listener;
+    }
+
+    void start() {
+        startTime = BulbMetrics.now();
+        try {
+            targets.addAll(getSubnetHosts());
+        } catch (IOException e) {
+            logger.fine("Cannot enumerate the local subnet");
+        }
+        logger.fine("Sweeping " + targets.size() + " hosts");
+        BulbMetrics.getInstance().increment(BulbMetrics.COUNTER_SWEEP);
+        fill();
+    }
+
+    void stop() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        targets.clear();
+        for (Probe probe : new HashSet<>(probes)) {
+            probe.close();
+        }
+        probes.clear();
+    }
+
+    boolean isRunning() {
+        return !stopped;
+    }
+
+    private void fill() {
+        while (!stopped && probes.size() < MAX_IN_FLIGHT && !targets.isEmpty()) {
+            final InetAddress target = targets.poll();
+            try {
+                probes.add(new Probe(target));
+            } catch (IOException e) {
+            }
+        }
+        if (!stopped && probes.isEmpty()) {
+            stopped = true;
+            logger.fine("Sweep finished in " + (BulbMetrics.now() - startTime) / 1_000_000L + "ms");
+            listener.onFinished();
+        }
+    }
+
+    // Only a successful reply to the probe itself proves that a bulb is listening
+    static boolean isProbeReply(String reply) {
+        for (String line : reply.split("\r?\n")) {
+            try {
+                final JSONObject message = new JSONObject(line);
+                if (message.optInt("id", -1) == PROBE_ID && message.has("result")) {
+                    return true;
+                }
+            } catch (JSONException e) {
+                // Truncated or not a JSON object
+            }
+        }
+        return false;
+    }
+
+    private static Set<InetAddress> getSubnetHosts() throws IOException {
+        final Set<InetAddress> hosts = new LinkedHashSet<>();
+        final List<BulbPlatform.Subnet> subnets = BulbPlatform.getInstance().getSubnets();
+        if (subnets != null) {
+            for (BulbPlatform.Subnet subnet : subnets) {
+                addSubnetHosts(hosts, subnet.getAddress(), subnet.getPrefixLength());
+            }
+        } else {
+            for (NetworkInterface networkInterface : Bulb.Discoverer.getMulticastInterfaces()) {
+                for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
+                    addSubnetHosts(hosts, interfaceAddress.getAddress(), interfaceAddress.getNetworkPrefixLength());
+                }
+            }
+        }
+        return hosts;
+    }
+
+    private static void addSubnetHosts(Set<InetAddress> hosts, InetAddress address, int prefixLength) throws UnknownHostException {
+        if (!(address instanceof Inet4Address) || address.isLoopbackAddress() || prefixLength > 30) {
+            return;
+        }
+        final byte[] bytes = address.getAddress();
+        final int own = (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | bytes[3] & 0xFF;
+        final int hostBits = 32 - Math.max(prefixLength, MIN_PREFIX_LENGTH);
+        final int network = own & -1 << hostBits;
+        // The network and broadcast addresses are skipped
+        for (int host = 1; host < (1 << hostBits) - 1; host++) {
+            final int target = network | host;
+            if (target != own) {
+                hosts.add(InetAddress.getByAddress(new byte[]{(byte) (target >>> 24), (byte) (target >>> 16), (byte) (target >>> 8), (byte) target}));
+            }
+        }
+    }
+
+    // Connects and asks for a property: only a bulb answers the JSON-RPC request with our id
+    private final class Probe implements BulbEventLoop.ChannelHandler {
+
+        private final InetAddress inet;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ByteBuffer output = ByteBuffer.wrap(PROBE);
+        private final ByteBuffer input = ByteBuffer.allocate(256);
+        private BulbEventLoop.Timeout timer;
+        private boolean closed = false;
+
+        private Probe(InetAddress inet) throws IOException {
+            this.inet = inet;
+            channel = SocketChannel.open();
+            try {
+                channel.configureBlocking(false);
+                BulbPlatform.getInstance().bindSocket(channel.socket());
+                final boolean connected = channel.connect(new InetSocketAddress(inet, PORT));
+                key = BulbEventLoop.getInstance().register(channel, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, this);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            timer = BulbEventLoop.getInstance().schedule(this::finish, CONNECT_TIMEOUT);
+        }
+
+        @Override
+        public void onReady(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    channel.finishConnect();
+                    timer.cancel();
+                    timer = BulbEventLoop.getInstance().schedule(this::finish, CONFIRM_TIMEOUT);
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    channel.write(output);
+                    if (!output.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+                if (key.isValid() && key.isReadable()) {
+                    if (channel.read(input) == -1) {
+                        finish();
+                        return;
+                    }
+                    final String reply = new String(input.array(), 0, input.position(), StandardCharsets.UTF_8);
+                    if (reply.indexOf('\n') != -1 || !input.hasRemaining()) {
+                        final boolean confirmed = isProbeReply(reply);
+                        close();
+                        if (confirmed && !stopped) {
+                            listener.onFound(new Bulb(inet, PORT));
+                        }
+                        fill();
+                    }
+                }
+            } catch (IOException e) {
+                finish();
+            }
+        }
+
+        private void finish() {
+            close();
+            fill();
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            probes.remove(this);
+            if (timer != null) {
+                timer.cancel();
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,391 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+
+public final class SsdpMessage {
+
+    public static final int DEFAULT_MAX_AGE = 3600;
+
+    public static final String SEARCH_REQUEST = "M-SEARCH * HTTP/1.1\r\n" +
+            "HOST:239.255.255.250:1982\r\n" +
+            "MAN:\"ssdp:discover\"\r\n" +
+            "ST:wifi_bulb\r\n";
+
+    private static final byte[] RESPONSE_START_LINE = ascii("HTTP/1.1 200 OK");
+    private static final byte[] ANNOUNCE_START_LINE = ascii("NOTIFY * HTTP/1.1");
+    private static final byte[] LOCATION_SCHEME = ascii("yeelight://");
+    private static final byte[] MAX_AGE_DIRECTIVE = ascii("max-age=");
+
+    private static final byte[] HEADER_LOCATION = ascii("location");
+    private static final byte[] HEADER_CACHE_CONTROL = ascii("cache-control");
+    private static final byte[] HEADER_ID = ascii("id");
+    private static final byte[] HEADER_MODEL = ascii("model");
+    private static final byte[] HEADER_FW_VER = ascii("fw_ver");
+    private static final byte[] HEADER_SUPPORT = ascii("support");
+    private static final byte[] HEADER_POWER = ascii("power");
+    private static final byte[] HEADER_BRIGHT = ascii("bright");
+    private static final byte[] HEADER_COLOR_MODE = ascii("color_mode");
+    private static final byte[] HEADER_CT = ascii("ct");
+    private static final byte[] HEADER_RGB = ascii("rgb");
+    private static final byte[] HEADER_NAME = ascii("name");
+    private static final byte[] POWER_ON = ascii("on");
+
+    public static final int UNKNOWN = -1;
+
+    private static byte[] ascii(String string) {
+        return string.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private byte[] data;
+    private boolean announce;
+    private final byte[] address = new byte[4];
+    private int port;
+    private long id;
+    private boolean hasId;
+    private int maxAge;
+    private int firmwareVersion;
+    private int power;
+    private int bright;
+    private int colorMode;
+    private int colorTemperature;
+    private int rgb;
+    private int modelOffset, modelLength;
+    private int supportOffset, supportLength;
+    private int nameOffset, nameLength;
+
+    private void reset() {
+        data = null;
+        announce = false;
+        port = 0;
+        id = 0;
+        hasId = false;
+        maxAge = DEFAULT_MAX_AGE;
+        firmwareVersion = UNKNOWN;
+        power = UNKNOWN;
+        bright = UNKNOWN;
+        colorMode = UNKNOWN;
+        colorTemperature = UNKNOWN;
+        rgb = UNKNOWN;
+        modelLength = supportLength = nameLength = 0;
+    }
+
+    // Parses a Yeelight search response or announcement in place, keeping offsets into the buffer for textual headers
+    public boolean parse(byte[] data, int offset, int length) {
+        reset();
+        final int end = offset + length;
+        int lineEnd = findLineEnd(data, offset, end);
+        if (matches(data, offset, lineEnd, RESPONSE_START_LINE)) {
+            announce = false;
+        } else if (matches(data, offset, lineEnd, ANNOUNCE_START_LINE)) {
+            announce = true;
+        } else {
+            return false;
+        }
+        boolean hasLocation = false;
+        int lineStart = skipLineBreak(data, lineEnd, end);
+        while (lineStart < end) {
+            lineEnd = findLineEnd(data, lineStart, end);
+            if (lineEnd == lineStart) {
+                break;
+            }
+            final int colon = indexOf(data, lineStart, lineEnd, (byte) ':');
+            if (colon != -1) {
+                final int nameEnd = trimEnd(data, lineStart, colon);
+                final int valueStart = trimStart(data, colon + 1, lineEnd);
+                final int valueEnd = trimEnd(data, valueStart, lineEnd);
+                if (equalsIgnoreCase(data, lineStart, nameEnd, HEADER_LOCATION)) {
+                    hasLocation = parseLocation(data, valueStart, valueEnd);
+                    if (!hasLocation) {
+                        return false;
+                    }
+                } else if (equalsIgnoreCase(data, lineStart, nameEnd, HEADER_CACHE_CONTROL)) {
+                    final int directive = indexOfIgnoreCase(data, valueStart, valueEnd, MAX_AGE_DIRECTIVE);
+                    if (directive != -1) {
+                        final int age = parseDecimal(data, directive + MAX_AGE_DIRECTIVE.length, valueEnd);
+                        if (age != UNKNOWN) {
+                            maxAge = age;
+                        }
+                    }
+                } else if (equalsIgnoreCase(data, lineStart, nameEnd, HEADER_ID)) {
+                    hasId = parseId(data, valueStart, valueEnd);
+                } else if (equalsIgnoreCase(data, lineStart, nameEnd, HEADER_MODEL)) {
+                    modelOffset = valueStart;
+                    modelLength = valueEnd - valueStart;
+                } else if (equalsIgnoreCase(data, lineStart, nameEnd, HEADER_FW_VER)) {
+                    firmwareVersion = parseDecimal(data, valueStart, valueEnd);
+                } else if (equalsIgnoreCase(data, lineStart, nameEnd, HEADER_SUPPORT)) {
+                    supportOffset = valueStart;
+                    supportLength = valueEnd - valueStart;
+                } else if (equalsIgnoreCase(data, lineStart, nameEnd, HEADER_POWER)) {
+                    power = equalsIgnoreCase(data, valueStart, valueEnd, POWER_ON) ? 1 : 0;
+                } else if (equalsIgnoreCase(data, lineStart, nameEnd, HEADER_BRIGHT)) {
+                    bright = parseDecimal(data, valueStart, valueEnd);
+                } else if (equalsIgnoreCase(data, lineStart, nameEnd, HEADER_COLOR_MODE)) {
+                    colorMode = parseDecimal(data, valueStart, valueEnd);
+                } else if (equalsIgnoreCase(data, lineStart, nameEnd, HEADER_CT)) {
+                    colorTemperature = parseDecimal(data, valueStart, valueEnd);
+                } else if (equalsIgnoreCase(data, lineStart, nameEnd, HEADER_RGB)) {
+                    rgb = parseDecimal(data, valueStart, valueEnd);
+                } else if (equalsIgnoreCase(data, lineStart, nameEnd, HEADER_NAME)) {
+                    nameOffset = valueStart;
+                    nameLength = valueEnd - valueStart;
+                }
+            }
+            lineStart = skipLineBreak(data, lineEnd, end);
+        }
+        if (hasLocation) {
+            this.data = data;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean parseLocation(byte[] data, int start, int end) {
+        if (end - start <= LOCATION_SCHEME.length || !equalsIgnoreCase(data, start, start + LOCATION_SCHEME.length, LOCATION_SCHEME)) {
+            return false;
+        }
+        int i = start + LOCATION_SCHEME.length;
+        for (int octet = 0; octet < 4; octet++) {
+            int value = 0;
+            int digits = 0;
+            while (i < end && data[i] >= '0' && data[i] <= '9' && digits < 3) {
+                value = value * 10 + (data[i++] - '0');
+                digits++;
+            }
+            if (digits == 0 || value > 255 || i >= end || data[i++] != (octet < 3 ? '.' : ':')) {
+                return false;
+            }
+            address[octet] = (byte) value;
+        }
+        port = parseDecimal(data, i, end);
+        return port >= 1 && port <= 65535;
+    }
+
+    private boolean parseId(byte[] data, int start, int end) {
+        if (end - start > 2 && data[start] == '0' && (data[start + 1] == 'x' || data[start + 1] == 'X')) {
+            start += 2;
+        }
+        if (start == end || end - start > 16) {
+            return false;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            final int digit = Character.digit(data[i], 16);
+            if (digit == -1) {
+                return false;
+            }
+            value = (value << 4) | digit;
+        }
+        id = value;
+        return true;
+    }
+
+    private static int parseDecimal(byte[] data, int start, int end) {
+        if (start >= end) {
+            return UNKNOWN;
+        }
+        int value = 0;
+        int i = start;
+        for (; i < end && data[i] >= '0' && data[i] <= '9'; i++) {
+            final int digit = data[i] - '0';
+            // Checked before multiplying, since an overflow can wrap around to a positive value
+            if (value > (Integer.MAX_VALUE - digit) / 10) {
+                return UNKNOWN;
+            }
+            value = value * 10 + digit;
+        }
+        return i == start ? UNKNOWN : value;
+    }
+
+    private static int findLineEnd(byte[] data, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == '\r' || data[i] == '\n') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int skipLineBreak(byte[] data, int i, int end) {
+        if (i < end && data[i] == '\r') {
+            i++;
+        }
+        if (i < end && data[i] == '\n') {
+            i++;
+        }
+        return i;
+    }
+
+    private static int trimStart(byte[] data, int start, int end) {
+        while (start < end && (data[start] == ' ' || data[start] == '\t')) {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimEnd(byte[] data, int start, int end) {
+        while (end > start && (data[end - 1] == ' ' || data[end - 1] == '\t')) {
+            end--;
+        }
+        return end;
+    }
+
+    private static int indexOf(byte[] data, int start, int end, byte value) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOfIgnoreCase(byte[] data, int start, int end, byte[] lowerCaseValue) {
+        for (int i = start; i <= end - lowerCaseValue.length; i++) {
+            if (equalsIgnoreCase(data, i, i + lowerCaseValue.length, lowerCaseValue)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matches(byte[] data, int start, int end, byte[] value) {
+        if (end - start != value.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (data[start + i] != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equalsIgnoreCase(byte[] data, int start, int end, byte[] lowerCaseValue) {
+        if (end - start != lowerCaseValue.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerCaseValue.length; i++) {
+            byte b = data[start + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerCaseValue[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isAnnounce() {
+        return announce;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public boolean hasId() {
+        return hasId;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public boolean isSameAddress(InetAddress inet) {
+        final byte[] other = inet.getAddress();
+        return other.length == 4 && other[0] == address[0] && other[1] == address[1] && other[2] == address[2] && other[3] == address[3];
+    }
+
+    public int getMaxAge() {
+        return maxAge;
+    }
+
+    public int getFirmwareVersion() {
+        return firmwareVersion;
+    }
+
+    public boolean hasPower() {
+        return power != UNKNOWN;
+    }
+
+    public boolean isPowerOn() {
+        return power == 1;
+    }
+
+    public int getBright() {
+        return bright;
+    }
+
+    public int getColorMode() {
+        return colorMode;
+    }
+
+    public int getColorTemperature() {
+        return colorTemperature;
+    }
+
+    public int getRgb() {
+        return rgb;
+    }
+
+    public boolean supports(String method) {
+        int i = supportOffset;
+        final int end = supportOffset + supportLength;
+        while (i < end) {
+            int tokenEnd = indexOf(data, i, end, (byte) ' ');
+            if (tokenEnd == -1) {
+                tokenEnd = end;
+            }
+            if (tokenEnd - i == method.length()) {
+                boolean match = true;
+                for (int c = 0; c < method.length() && match; c++) {
+                    match = data[i + c] == method.charAt(c);
+                }
+                if (match) {
+                    return true;
+                }
+            }
+            i = tokenEnd + 1;
+        }
+        return false;
+    }
+
+    public String getModel() {
+        return modelLength > 0 ? new String(data, modelOffset, modelLength, StandardCharsets.UTF_8) : null;
+    }
+
+    public String getSupport() {
+        return supportLength > 0 ? new String(data, supportOffset, supportLength, StandardCharsets.UTF_8) : null;
+    }
+
+    public String getName() {
+        return nameLength > 0 ? new String(data, nameOffset, nameLength, StandardCharsets.UTF_8) : null;
+    }
+
+    public static String formatId(long id) {
+        final char[] chars = new char[18];
+        chars[0] = '0';
+        chars[1] = 'x';
+        for (int i = 17; i > 1; i--) {
+            chars[i] = Character.forDigit((int) (id & 0xF), 16);
+            id >>>= 4;
+        }
+        return new String(chars);
+    }
+
+    public BulbState toState() {
+        return new BulbState(power, bright, colorMode, colorTemperature, rgb);
+    }
+
+    public InetAddress getInet() {
+        try {
+            return InetAddress.getByAddress(address.clone());
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
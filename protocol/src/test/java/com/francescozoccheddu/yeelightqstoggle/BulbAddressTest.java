@@ -0,0 +1,101 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BulbAddressTest {
+
+    private static String repeat(char c, int count) {
+        final StringBuilder builder = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void parsesLiteralAddresses() {
+        final BulbAddress address = BulbAddress.parse(" 192.168.1.2:55443 ");
+        assertTrue(address.isLiteral());
+        assertEquals("192.168.1.2", address.getHost());
+        assertEquals(55443, address.getPort());
+        assertArrayEquals(new byte[]{(byte) 192, (byte) 168, 1, 2}, address.toInetAddress().getAddress());
+        assertEquals("192.168.1.2:55443", address.toString());
+    }
+
+    @Test
+    public void parsesHostNamesWithoutResolving() {
+        final BulbAddress address = BulbAddress.parse("Bedroom-Lamp.lan:55443");
+        assertFalse(address.isLiteral());
+        assertNull(address.toInetAddress());
+        assertEquals("Bedroom-Lamp.lan", address.getHost());
+        assertTrue(BulbAddress.isValid("bulb:1"));
+        assertTrue(BulbAddress.isValid("bulb.lan.:55443"));
+        assertTrue(BulbAddress.isValid("1bulb.2lan:55443"));
+        assertTrue(BulbAddress.isValid("10.0.0.bulb:55443"));
+    }
+
+    @Test
+    public void rejectsInvalidPorts() {
+        assertFalse(BulbAddress.isValid("bulb"));
+        assertFalse(BulbAddress.isValid("bulb:"));
+        assertFalse(BulbAddress.isValid(":55443"));
+        assertFalse(BulbAddress.isValid("bulb:0"));
+        assertFalse(BulbAddress.isValid("bulb:65536"));
+        assertFalse(BulbAddress.isValid("bulb:123456"));
+        assertFalse(BulbAddress.isValid("bulb:-1"));
+        assertFalse(BulbAddress.isValid("bulb:+80"));
+        assertFalse(BulbAddress.isValid("bulb:80x"));
+        assertFalse(BulbAddress.isValid(null));
+    }
+
+    @Test
+    public void rejectsMalformedLiterals() {
+        assertFalse(BulbAddress.isValid("256.0.0.1:55443"));
+        assertFalse(BulbAddress.isValid("10.0.0:55443"));
+        assertFalse(BulbAddress.isValid("10.0.0.1.2:55443"));
+        assertFalse(BulbAddress.isValid("10.0.0.0001:55443"));
+        assertFalse(BulbAddress.isValid("10..0.1:55443"));
+    }
+
+    @Test
+    public void validatesHostNameLabels() {
+        assertFalse(BulbAddress.isValid("-bulb:55443"));
+        assertFalse(BulbAddress.isValid("bulb-:55443"));
+        assertFalse(BulbAddress.isValid("bulb..lan:55443"));
+        assertFalse(BulbAddress.isValid(".bulb:55443"));
+        assertFalse(BulbAddress.isValid("bulb_lamp:55443"));
+        assertFalse(BulbAddress.isValid("bulb lamp:55443"));
+        assertFalse(BulbAddress.isValid("b\u00f9lb:55443"));
+        assertTrue(BulbAddress.isValid(repeat('a', 63) + ".lan:55443"));
+        assertFalse(BulbAddress.isValid(repeat('a', 64) + ".lan:55443"));
+    }
+
+    @Test
+    public void limitsHostNameLength() {
+        final String label = repeat('a', 63);
+        final String longest = label + "." + label + "." + label + "." + repeat('a', 61);
+        assertEquals(253, longest.length());
+        assertTrue(BulbAddress.isValid(longest + ":55443"));
+        assertFalse(BulbAddress.isValid(longest + "a:55443"));
+    }
+
+    @Test
+    public void rejectsAllNumericLastLabel() {
+        assertFalse(BulbAddress.isValid("bulb.123:55443"));
+        assertFalse(BulbAddress.isValid("123:55443"));
+    }
+
+    @Test
+    public void comparesHostsIgnoringCase() {
+        assertEquals(BulbAddress.parse("Bulb.LAN:55443"), BulbAddress.parse("bulb.lan:55443"));
+        assertEquals(BulbAddress.parse("Bulb.LAN:55443").hashCode(), BulbAddress.parse("bulb.lan:55443").hashCode());
+        assertFalse(BulbAddress.parse("bulb.lan:55443").equals(BulbAddress.parse("bulb.lan:55444")));
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BulbCommandTest {
+
+    @Test
+    public void formatsMessages() {
+        assertEquals("{\"id\":7,\"method\":\"toggle\",\"params\":[]}\r\n", BulbCommand.toggle().toMessage(7));
+        assertEquals("{\"id\":1,\"method\":\"set_power\",\"params\":[\"on\",\"smooth\",300]}\r\n",
+                BulbCommand.setPower(true, 300).toMessage(1));
+        assertEquals("{\"id\":2,\"method\":\"set_bright\",\"params\":[40,\"sudden\",0]}\r\n",
+                BulbCommand.setBright(40, 0).toMessage(2));
+        assertEquals("{\"id\":3,\"method\":\"get_prop\",\"params\":[\"power\",\"bright\"]}\r\n",
+                BulbCommand.getProp("power", "bright").toMessage(3));
+    }
+
+    @Test
+    public void escapesStrings() {
+        final String name = "a \"b\" \\c\nd\re\tf\u0001";
+        final String message = new BulbCommand("set_name", name).toMessage(4);
+        assertEquals("{\"id\":4,\"method\":\"set_name\",\"params\":[\"a \\\"b\\\" \\\\c\\nd\\re\\tf\\u0001\"]}\r\n", message);
+        assertTrue(message.indexOf('\n') == message.length() - 1);
+        assertEquals(name, new JSONObject(message).getJSONArray("params").getString(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherParams() {
+        new BulbCommand("set_name", new Object());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOutOfRangeValues() {
+        BulbCommand.setBright(0, 0);
+    }
+
+    @Test
+    public void supersedesOnlyRedundantCommands() {
+        assertTrue(BulbCommand.setPower(false, 0).supersedes(BulbCommand.toggle()));
+        assertTrue(BulbCommand.setPower(true, 0).supersedes(BulbCommand.setPower(false, 0)));
+        assertTrue(BulbCommand.setBright(10, 0).supersedes(BulbCommand.setBright(20, 0)));
+        assertFalse(BulbCommand.setBright(10, 0).supersedes(BulbCommand.setRgb(0, 0)));
+        assertFalse(BulbCommand.toggle().supersedes(BulbCommand.toggle()));
+        assertFalse(BulbCommand.getProp("power").supersedes(BulbCommand.getProp("power")));
+    }
+
+}
@@ -0,0 +1,106 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BulbConnectionPoolTest {
+
+    private static final int TIMEOUT = 2000;
+
+    private final BulbConnectionPool pool = BulbConnectionPool.getInstance();
+    private FakeBulb fake;
+    private Bulb bulb;
+
+    @Before
+    public void setUp() throws IOException {
+        fake = new FakeBulb(0, 0, 0);
+        bulb = new Bulb(fake.getInet(), fake.getPort());
+    }
+
+    @After
+    public void tearDown() {
+        pool.setKeepAlive(false);
+        fake.close();
+    }
+
+    // Without keep-alive and without quota for the state request, the connection has nothing to wait for
+    // but must not be dropped before it is established
+    @Test
+    public void connectsWithoutKeepAliveOrQuota() throws Exception {
+        pool.setKeepAlive(false);
+        while (BulbRateLimiter.getInstance().tryAcquire(bulb)) {
+        }
+        pool.connect(bulb).get(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private static String get(CompletableFuture<JSONArray> future) throws Exception {
+        return future.get(TIMEOUT, TimeUnit.MILLISECONDS).toString();
+    }
+
+    @Test
+    public void matchesPipelinedReplies() throws Exception {
+        final List<CompletableFuture<JSONArray>> replies = pool.call(bulb, Arrays.asList(
+                BulbCommand.toggle(), BulbCommand.getProp("power", "bright"), BulbCommand.setBright(30, 0), BulbCommand.getProp("bright")), TIMEOUT);
+        assertEquals("[\"ok\"]", get(replies.get(0)));
+        assertEquals("[\"on\",\"100\"]", get(replies.get(1)));
+        assertEquals("[\"ok\"]", get(replies.get(2)));
+        assertEquals("[\"30\"]", get(replies.get(3)));
+    }
+
+    @Test
+    public void matchesRepliesOutOfOrder() throws Exception {
+        fake.delayReplies("toggle", 300);
+        final List<CompletableFuture<JSONArray>> replies = pool.call(bulb, Arrays.asList(
+                BulbCommand.toggle(), BulbCommand.getProp("power")), TIMEOUT);
+        assertEquals("[\"on\"]", get(replies.get(1)));
+        assertFalse(replies.get(0).isDone());
+        assertEquals("[\"ok\"]", get(replies.get(0)));
+    }
+
+    @Test
+    public void failsWithBulbErrors() throws Exception {
+        final CompletableFuture<JSONArray> reply = pool.call(bulb, Collections.singletonList(new BulbCommand("set_name", "lamp")), TIMEOUT).get(0);
+        try {
+            get(reply);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof BulbCommandException);
+        }
+    }
+
+    // A reply that arrives after its request timed out must not complete a later request on the same connection
+    @Test
+    public void ignoresRepliesAfterTimeout() throws Exception {
+        pool.setKeepAlive(true);
+        pool.connect(bulb).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        fake.delayReplies("toggle", 500);
+        final CompletableFuture<JSONArray> late = pool.call(bulb, Collections.singletonList(BulbCommand.toggle()), 100).get(0);
+        try {
+            get(late);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }
+        fake.delayReplies("get_prop", 1000);
+        final CompletableFuture<JSONArray> next = pool.call(bulb, Collections.singletonList(BulbCommand.getProp("power")), TIMEOUT).get(0);
+        assertEquals("[\"on\"]", get(next));
+        assertTrue(fake.isOn());
+    }
+
+}
@@ -0,0 +1,118 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BulbEventLoopTest {
+
+    private final BulbEventLoop loop = BulbEventLoop.getInstance();
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000L;
+    }
+
+    @Test
+    public void runsTasksInOrderOnTheLoopThread() throws InterruptedException {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        final AtomicBoolean inLoop = new AtomicBoolean(true);
+        final CountDownLatch done = new CountDownLatch(1);
+        for (int i = 0; i < 100; i++) {
+            final int index = i;
+            loop.execute(() -> {
+                inLoop.compareAndSet(true, loop.inLoop());
+                order.add(index);
+            });
+        }
+        loop.execute(done::countDown);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(inLoop.get());
+        assertFalse(loop.inLoop());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    @Test
+    public void firesTimersInDeadlineOrder() throws InterruptedException {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int delay : new int[]{120, 30, 90, 60}) {
+            loop.schedule(() -> {
+                order.add(delay);
+                done.countDown();
+            }, delay);
+        }
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(30, 60, 90, 120), order);
+    }
+
+    @Test
+    public void neverFiresEarly() throws InterruptedException {
+        final AtomicLong fired = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(1);
+        final long start = now();
+        loop.schedule(() -> {
+            fired.set(now());
+            done.countDown();
+        }, 55);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(fired.get() - start >= 55);
+    }
+
+    @Test
+    public void skipsCancelledTimers() throws InterruptedException {
+        final AtomicBoolean cancelledFired = new AtomicBoolean(false);
+        final CountDownLatch done = new CountDownLatch(1);
+        final BulbEventLoop.Timeout cancelled = loop.schedule(() -> cancelledFired.set(true), 20);
+        loop.schedule(done::countDown, 60);
+        cancelled.cancel();
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertFalse(cancelledFired.get());
+    }
+
+    @Test
+    public void cancelsFromWithinAnotherTimer() throws InterruptedException {
+        final AtomicBoolean cancelledFired = new AtomicBoolean(false);
+        final CountDownLatch done = new CountDownLatch(1);
+        final BulbEventLoop.Timeout cancelled = loop.schedule(() -> cancelledFired.set(true), 60);
+        loop.schedule(cancelled::cancel, 20);
+        loop.schedule(done::countDown, 100);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertFalse(cancelledFired.get());
+    }
+
+    // The wheel covers about five seconds, longer delays have to wait for more rounds instead of firing a lap early
+    @Test
+    public void waitsMoreRoundsForDelaysLongerThanTheWheel() throws InterruptedException {
+        final AtomicLong fired = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(2);
+        final AtomicBoolean shortFired = new AtomicBoolean(false);
+        final long start = now();
+        loop.schedule(() -> {
+            fired.set(now());
+            done.countDown();
+        }, 5200);
+        // Lands in the same slot one round earlier
+        loop.schedule(() -> {
+            shortFired.set(fired.get() == 0);
+            done.countDown();
+        }, 80);
+        assertTrue(done.await(7, TimeUnit.SECONDS));
+        assertTrue(shortFired.get());
+        final long elapsed = fired.get() - start;
+        assertTrue("Fired after " + elapsed + "ms", elapsed >= 5200 && elapsed < 6000);
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BulbPresetTest {
+
+    private static final int UNKNOWN = BulbState.UNKNOWN;
+
+    @Test
+    public void keepsColorTemperatureInCtMode() {
+        final BulbPreset preset = BulbPreset.fromState("warm", new BulbState(1, 80, BulbState.COLOR_MODE_CT, 4000, 16711680));
+        assertEquals(80, preset.getBright());
+        assertEquals(4000, preset.getColorTemperature());
+        assertEquals(BulbPreset.UNSET, preset.getRgb());
+    }
+
+    @Test
+    public void keepsColorInRgbMode() {
+        final BulbPreset preset = BulbPreset.fromState("red", new BulbState(1, 50, BulbState.COLOR_MODE_RGB, 4000, 16711680));
+        assertEquals(50, preset.getBright());
+        assertEquals(BulbPreset.UNSET, preset.getColorTemperature());
+        assertEquals(16711680, preset.getRgb());
+    }
+
+    @Test
+    public void keepsOnlyBrightnessInOtherModes() {
+        for (int mode : new int[]{BulbState.COLOR_MODE_HSV, UNKNOWN}) {
+            final BulbPreset preset = BulbPreset.fromState("dim", new BulbState(1, 10, mode, 4000, 16711680));
+            assertEquals(10, preset.getBright());
+            assertEquals(BulbPreset.UNSET, preset.getColorTemperature());
+            assertEquals(BulbPreset.UNSET, preset.getRgb());
+        }
+    }
+
+    @Test
+    public void needsBrightness() {
+        assertNull(BulbPreset.fromState("none", new BulbState(1, UNKNOWN, BulbState.COLOR_MODE_CT, 4000, UNKNOWN)));
+        assertNull(BulbPreset.fromState("none", BulbState.UNKNOWN_STATE));
+    }
+
+    @Test
+    public void decodesWhatItEncodes() {
+        for (BulbPreset preset : new BulbPreset[]{
+                new BulbPreset("reading", 80, 4000, BulbPreset.UNSET),
+                new BulbPreset("red", BulbPreset.UNSET, BulbPreset.UNSET, 0xFF0000),
+                new BulbPreset(" night light ", 1, BulbPreset.UNSET, BulbPreset.UNSET)}) {
+            final BulbPreset decoded = BulbPreset.decode(preset.encode());
+            assertEquals(preset.getName(), decoded.getName());
+            assertEquals(preset.getBright(), decoded.getBright());
+            assertEquals(preset.getColorTemperature(), decoded.getColorTemperature());
+            assertEquals(preset.getRgb(), decoded.getRgb());
+        }
+        assertEquals("night light", BulbPreset.decode("night light|1|-1|-1").getName());
+    }
+
+    @Test
+    public void rejectsInvalidEncodings() {
+        assertNull(BulbPreset.decode(""));
+        assertNull(BulbPreset.decode("dim|10|-1"));
+        assertNull(BulbPreset.decode("dim|10|-1|-1|-1"));
+        assertNull(BulbPreset.decode("dim|ten|-1|-1"));
+        assertNull(BulbPreset.decode(" |10|-1|-1"));
+        assertNull(BulbPreset.decode("dim|101|-1|-1"));
+        assertNull(BulbPreset.decode("dim|10|1000|-1"));
+        assertNull(BulbPreset.decode("dim|10|4000|255"));
+        assertNull(BulbPreset.decode("dim|-1|-1|-1"));
+    }
+
+    private static String toMessages(List<BulbCommand> commands) {
+        final StringBuilder builder = new StringBuilder();
+        for (BulbCommand command : commands) {
+            builder.append(command.toMessage(0));
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void usesScenesWhenPossible() {
+        assertEquals(BulbCommand.setColorTemperatureScene(4000, 80).toMessage(0),
+                toMessages(new BulbPreset("reading", 80, 4000, BulbPreset.UNSET).toCommands(300)));
+        assertEquals(BulbCommand.setColorScene(0xFF0000, 50).toMessage(0),
+                toMessages(new BulbPreset("red", 50, BulbPreset.UNSET, 0xFF0000).toCommands(300)));
+    }
+
+    @Test
+    public void powersOnBeforeSingleSettings() {
+        assertEquals(BulbCommand.setPower(true, 300).toMessage(0) + BulbCommand.setBright(10, 300).toMessage(0),
+                toMessages(new BulbPreset("dim", 10, BulbPreset.UNSET, BulbPreset.UNSET).toCommands(300)));
+        assertEquals(BulbCommand.setPower(true, 0).toMessage(0) + BulbCommand.setColorTemperature(2700, 0).toMessage(0),
+                toMessages(new BulbPreset("warm", BulbPreset.UNSET, 2700, BulbPreset.UNSET).toCommands(0)));
+        assertEquals(BulbCommand.setPower(true, 0).toMessage(0) + BulbCommand.setRgb(0xFF, 0).toMessage(0),
+                toMessages(new BulbPreset("blue", BulbPreset.UNSET, BulbPreset.UNSET, 0xFF).toCommands(0)));
+    }
+
+}
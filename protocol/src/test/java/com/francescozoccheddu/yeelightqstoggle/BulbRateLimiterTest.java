@@ -0,0 +1,112 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BulbRateLimiterTest {
+
+    private static final int TIMEOUT = 5000;
+
+    private final BulbRateLimiter limiter = BulbRateLimiter.getInstance();
+    private FakeBulb fake;
+    private Bulb bulb;
+
+    // Every test gets a bulb of its own, and so a full bucket, which it spends so that its commands are queued
+    @Before
+    public void setUp() throws IOException {
+        fake = new FakeBulb(0, 0, 0);
+        bulb = new Bulb(fake.getInet(), fake.getPort());
+        while (limiter.tryAcquire(bulb)) {
+        }
+    }
+
+    @After
+    public void tearDown() {
+        fake.close();
+    }
+
+    private List<CompletableFuture<JSONArray>> call(int timeout, BulbCommand... commands) {
+        return limiter.call(bulb, Arrays.asList(commands), timeout);
+    }
+
+    private static Throwable getFailure(CompletableFuture<JSONArray> future) throws Exception {
+        try {
+            future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        fail();
+        return null;
+    }
+
+    @Test
+    public void cancelsPendingToggles() throws Exception {
+        final List<CompletableFuture<JSONArray>> replies = call(TIMEOUT, BulbCommand.toggle(), BulbCommand.toggle());
+        assertTrue(replies.get(0).isDone());
+        assertTrue(replies.get(1).isDone());
+        assertEquals("[\"ok\"]", replies.get(0).get().toString());
+        assertEquals("[\"ok\"]", replies.get(1).get().toString());
+        assertFalse(fake.isOn());
+    }
+
+    @Test
+    public void keepsTogglesSeparatedByOtherPowerChanges() throws Exception {
+        final List<CompletableFuture<JSONArray>> replies = call(TIMEOUT,
+                BulbCommand.toggle(), BulbCommand.setPower(true, 0), BulbCommand.toggle());
+        for (CompletableFuture<JSONArray> reply : replies) {
+            assertFalse(reply.isDone());
+        }
+    }
+
+    @Test
+    public void replacesPendingPowerChanges() throws Exception {
+        final CompletableFuture<JSONArray> toggle = call(TIMEOUT, BulbCommand.toggle()).get(0);
+        final CompletableFuture<JSONArray> bright = call(TIMEOUT, BulbCommand.setBright(20, 0)).get(0);
+        final CompletableFuture<JSONArray> off = call(TIMEOUT, BulbCommand.setPower(false, 0)).get(0);
+        final CompletableFuture<JSONArray> on = call(TIMEOUT, BulbCommand.setPower(true, 0)).get(0);
+        // The toggle and the first set_power complete with the reply to the last one, which is sent in their place
+        assertEquals("[\"ok\"]", on.get(TIMEOUT, TimeUnit.MILLISECONDS).toString());
+        assertEquals("[\"ok\"]", toggle.get(TIMEOUT, TimeUnit.MILLISECONDS).toString());
+        assertEquals("[\"ok\"]", off.get(TIMEOUT, TimeUnit.MILLISECONDS).toString());
+        assertEquals("[\"ok\"]", bright.get(TIMEOUT, TimeUnit.MILLISECONDS).toString());
+        assertTrue(fake.isOn());
+        assertEquals(20, fake.getBright());
+    }
+
+    @Test
+    public void timesOutWhileQueued() throws Exception {
+        final long start = System.nanoTime();
+        final CompletableFuture<JSONArray> reply = call(100, BulbCommand.getProp("power")).get(0);
+        assertTrue(getFailure(reply) instanceof SocketTimeoutException);
+        // Well before the next token
+        assertTrue(System.nanoTime() - start < 1_000_000_000L);
+    }
+
+    @Test
+    public void rejectsCommandsBeyondTheQueueLimit() throws Exception {
+        final BulbCommand[] commands = new BulbCommand[9];
+        Arrays.fill(commands, BulbCommand.getProp("power"));
+        final List<CompletableFuture<JSONArray>> replies = call(TIMEOUT, commands);
+        for (int i = 0; i < 8; i++) {
+            assertFalse(replies.get(i).isDone());
+        }
+        assertTrue(getFailure(replies.get(8)) instanceof RejectedExecutionException);
+    }
+
+}
@@ -0,0 +1,32 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BulbSweeperTest {
+
+    @Test
+    public void acceptsProbeReplies() {
+        assertTrue(BulbSweeper.isProbeReply("{\"id\":1, \"result\":[\"on\"]}\r\n"));
+        assertTrue(BulbSweeper.isProbeReply("{\"result\":[\"off\"],\"id\":1}"));
+        assertTrue(BulbSweeper.isProbeReply("{\"method\":\"props\",\"params\":{\"power\":\"on\"}}\r\n{\"id\":1,\"result\":[\"on\"]}\r\n"));
+    }
+
+    @Test
+    public void rejectsOtherIds() {
+        assertFalse(BulbSweeper.isProbeReply("{\"id\":10,\"result\":[\"on\"]}\r\n"));
+        assertFalse(BulbSweeper.isProbeReply("{\"id\":11,\"result\":[\"on\"]}\r\n"));
+        assertFalse(BulbSweeper.isProbeReply("{\"id\":123,\"result\":[\"on\"]}\r\n"));
+    }
+
+    @Test
+    public void rejectsErrorsAndGarbage() {
+        assertFalse(BulbSweeper.isProbeReply("{\"id\":1,\"error\":{\"code\":-1,\"message\":\"unsupported method\"}}\r\n"));
+        assertFalse(BulbSweeper.isProbeReply("{\"id\":1,\"res"));
+        assertFalse(BulbSweeper.isProbeReply("SSH-2.0-OpenSSH_7.4\r\n"));
+        assertFalse(BulbSweeper.isProbeReply(""));
+    }
+
+}
@@ -0,0 +1,329 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// In-process Yeelight bulb on loopback: a JSON-RPC server on TCP and an SSDP responder on UDP
+public final class FakeBulb implements Closeable {
+
+    private static final int MAX_CONNECTIONS = 4;
+    private static final Pattern ID_PATTERN = Pattern.compile("\"id\"\\s*:\\s*(\\d+)");
+    private static final Pattern METHOD_PATTERN = Pattern.compile("\"method\"\\s*:\\s*\"(\\w+)\"");
+    private static final Pattern PARAMS_PATTERN = Pattern.compile("\"params\"\\s*:\\s*\\[\\s*\"(\\w+)\"");
+    private static final Pattern ARRAY_PARAMS_PATTERN = Pattern.compile("\"params\"\\s*:\\s*\\[([^\\]]*)\\]");
+    private static final Pattern STRING_PATTERN = Pattern.compile("\"(\\w+)\"");
+    private static final Pattern NUMBER_PARAMS_PATTERN = Pattern.compile("\"params\"\\s*:\\s*\\[\\s*(\\d+)");
+
+    private final int latencyMillis;
+    private final float packetLoss;
+    private final int commandsPerMinute;
+    private final long id;
+    private final Random random = new Random(0);
+    private final ServerSocket server;
+    private final DatagramSocket ssdp;
+    private final ScheduledExecutorService executor;
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+    private final ArrayDeque<Long> commandTimes = new ArrayDeque<>();
+    private final Map<String, Integer> replyDelays = new ConcurrentHashMap<>();
+    private volatile boolean on = false;
+    private volatile int bright = 100;
+
+    // latencyMillis delays every reply, packetLoss drops that fraction of search requests and
+    // commandsPerMinute rejects commands beyond the quota like real bulbs do (0 means no limit)
+    public FakeBulb(int latencyMillis, float packetLoss, int commandsPerMinute) throws IOException {
+        if (latencyMillis < 0 || packetLoss < 0 || packetLoss >= 1 || commandsPerMinute < 0) {
+            throw new IllegalArgumentException("Invalid fake bulb parameters");
+        }
+        this.latencyMillis = latencyMillis;
+        this.packetLoss = packetLoss;
+        this.commandsPerMinute = commandsPerMinute;
+        this.id = 0x1000000L + random.nextInt(0xFFFFFF);
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        server = new ServerSocket(0, MAX_CONNECTIONS, loopback);
+        ssdp = new DatagramSocket(new InetSocketAddress(loopback, 0));
+        executor = Executors.newScheduledThreadPool(2, runnable -> {
+            final Thread thread = new Thread(runnable, "FakeBulb");
+            thread.setDaemon(true);
+            return thread;
+        });
+        startDaemon(this::accept, "FakeBulb-accept");
+        startDaemon(this::respond, "FakeBulb-ssdp");
+    }
+
+    public InetAddress getInet() {
+        return server.getInetAddress();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    public int getSsdpPort() {
+        return ssdp.getLocalPort();
+    }
+
+    public boolean isOn() {
+        return on;
+    }
+
+    public int getBright() {
+        return bright;
+    }
+
+    // Replies to the method are sent after the delay without holding back the following ones, so they arrive
+    // out of order; the command itself still takes effect right away
+    public void delayReplies(String method, int delayMillis) {
+        replyDelays.put(method, delayMillis);
+    }
+
+    public byte[] getSearchResponse() {
+        return buildSearchResponse(false).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public byte[] getAnnouncement() {
+        return buildSearchResponse(true).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private String buildSearchResponse(boolean announce) {
+        return (announce ? "NOTIFY * HTTP/1.1\r\nHost: 239.255.255.250:1982\r\n" : "HTTP/1.1 200 OK\r\nExt:\r\n") +
+                "Cache-Control: max-age=3600\r\n" +
+                "Date:\r\n" +
+                "Location: yeelight://" + getInet().getHostAddress() + ":" + getPort() + "\r\n" +
+                "Server: POSIX UPnP/1.0 YGLC/1\r\n" +
+                "id: " + SsdpMessage.formatId(id) + "\r\n" +
+                "model: color\r\n" +
+                "fw_ver: 18\r\n" +
+                "support: get_prop set_default set_power toggle set_bright start_cf stop_cf set_scene cron_add cron_get cron_del set_ct_abx set_rgb\r\n" +
+                "power: " + (on ? "on" : "off") + "\r\n" +
+                "bright: " + bright + "\r\n" +
+                "color_mode: 2\r\n" +
+                "ct: 4000\r\n" +
+                "rgb: 16711680\r\n" +
+                "hue: 100\r\n" +
+                "sat: 35\r\n" +
+                "name: fake\r\n\r\n";
+    }
+
+    private static void startDaemon(Runnable runnable, String name) {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            final Socket client;
+            try {
+                client = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            if (clients.size() >= MAX_CONNECTIONS) {
+                closeQuietly(client);
+                continue;
+            }
+            clients.add(client);
+            startDaemon(() -> serve(client), "FakeBulb-client");
+        }
+    }
+
+    private void serve(Socket client) {
+        try {
+            client.setTcpNoDelay(true);
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+            final OutputStream output = client.getOutputStream();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String reply = handle(line);
+                if (reply == null) {
+                    continue;
+                }
+                if (latencyMillis > 0) {
+                    Thread.sleep(latencyMillis);
+                }
+                final Matcher methodMatcher = METHOD_PATTERN.matcher(line);
+                final Integer delay = methodMatcher.find() ? replyDelays.get(methodMatcher.group(1)) : null;
+                if (delay != null) {
+                    executor.schedule(() -> {
+                        try {
+                            write(output, reply);
+                        } catch (IOException e) {
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+                } else {
+                    write(output, reply);
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+        } finally {
+            clients.remove(client);
+            closeQuietly(client);
+        }
+    }
+
+    private static void write(OutputStream output, String reply) throws IOException {
+        synchronized (output) {
+            output.write(reply.getBytes(StandardCharsets.UTF_8));
+            output.flush();
+        }
+    }
+
+    private String handle(String line) {
+        final Matcher idMatcher = ID_PATTERN.matcher(line);
+        final Matcher methodMatcher = METHOD_PATTERN.matcher(line);
+        if (!idMatcher.find() || !methodMatcher.find()) {
+            return null;
+        }
+        final String id = idMatcher.group(1);
+        if (!acquireQuota()) {
+            return "{\"id\":" + id + ",\"error\":{\"code\":-1,\"message\":\"client quota exceeded\"}}\r\n";
+        }
+        final String result;
+        switch (methodMatcher.group(1)) {
+            case "toggle":
+                on = !on;
+                result = "[\"ok\"]";
+                break;
+            case "set_power": {
+                final Matcher paramsMatcher = PARAMS_PATTERN.matcher(line);
+                on = paramsMatcher.find() && paramsMatcher.group(1).equals("on");
+                result = "[\"ok\"]";
+                break;
+            }
+            case "set_bright": {
+                final Matcher paramsMatcher = NUMBER_PARAMS_PATTERN.matcher(line);
+                if (!paramsMatcher.find()) {
+                    return "{\"id\":" + id + ",\"error\":{\"code\":-1,\"message\":\"invalid params\"}}\r\n";
+                }
+                bright = Integer.parseInt(paramsMatcher.group(1));
+                result = "[\"ok\"]";
+                break;
+            }
+            case "get_prop":
+                result = getProperties(line);
+                break;
+            default:
+                return "{\"id\":" + id + ",\"error\":{\"code\":-1,\"message\":\"method not supported\"}}\r\n";
+        }
+        return "{\"id\":" + id + ",\"result\":" + result + "}\r\n";
+    }
+
+    // One value per requested property, empty for unknown ones like real bulbs do
+    private String getProperties(String line) {
+        final StringBuilder result = new StringBuilder("[");
+        final Matcher paramsMatcher = ARRAY_PARAMS_PATTERN.matcher(line);
+        if (paramsMatcher.find()) {
+            final Matcher nameMatcher = STRING_PATTERN.matcher(paramsMatcher.group(1));
+            while (nameMatcher.find()) {
+                if (result.length() > 1) {
+                    result.append(',');
+                }
+                result.append('"').append(getProperty(nameMatcher.group(1))).append('"');
+            }
+        }
+        return result.append(']').toString();
+    }
+
+    private String getProperty(String name) {
+        switch (name) {
+            case "power":
+                return on ? "on" : "off";
+            case "bright":
+                return Integer.toString(bright);
+            case "color_mode":
+                return "2";
+            case "ct":
+                return "4000";
+            case "rgb":
+                return "16711680";
+            default:
+                return "";
+        }
+    }
+
+    private synchronized boolean acquireQuota() {
+        if (commandsPerMinute == 0) {
+            return true;
+        }
+        final long now = System.nanoTime();
+        while (!commandTimes.isEmpty() && now - commandTimes.peekFirst() > TimeUnit.MINUTES.toNanos(1)) {
+            commandTimes.pollFirst();
+        }
+        if (commandTimes.size() >= commandsPerMinute) {
+            return false;
+        }
+        commandTimes.addLast(now);
+        return true;
+    }
+
+    private void respond() {
+        final byte[] buffer = new byte[1024];
+        final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!ssdp.isClosed()) {
+            packet.setLength(buffer.length);
+            try {
+                ssdp.receive(packet);
+            } catch (IOException e) {
+                return;
+            }
+            final String request = new String(buffer, 0, packet.getLength(), StandardCharsets.US_ASCII);
+            if (!request.startsWith("M-SEARCH") || !request.contains("wifi_bulb")) {
+                continue;
+            }
+            final boolean lost;
+            synchronized (random) {
+                lost = random.nextFloat() < packetLoss;
+            }
+            if (lost) {
+                continue;
+            }
+            final SocketAddress sender = packet.getSocketAddress();
+            final byte[] response = getSearchResponse();
+            executor.schedule(() -> {
+                try {
+                    ssdp.send(new DatagramPacket(response, response.length, sender));
+                } catch (IOException e) {
+                }
+            }, latencyMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+        }
+    }
+
+    @Override
+    public void close() {
+        closeQuietly(server);
+        ssdp.close();
+        for (Socket client : clients) {
+            closeQuietly(client);
+        }
+        executor.shutdownNow();
+    }
+
+}
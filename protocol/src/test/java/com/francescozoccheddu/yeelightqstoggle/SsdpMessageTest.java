@@ -0,0 +1,195 @@
+package com.francescozoccheddu.yeelightqstoggle;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SsdpMessageTest {
+
+    private static final String RESPONSE = "HTTP/1.1 200 OK\r\n" +
+            "Cache-Control: max-age=3600\r\n" +
+            "Date: \r\n" +
+            "Ext: \r\n" +
+            "Location: yeelight://192.168.1.239:55443\r\n" +
+            "Server: POSIX UPnP/1.0 YGLC/1\r\n" +
+            "id: 0x000000000015243f\r\n" +
+            "model: color\r\n" +
+            "fw_ver: 18\r\n" +
+            "support: get_prop set_default set_power toggle set_bright\r\n" +
+            "power: on\r\n" +
+            "bright: 100\r\n" +
+            "color_mode: 2\r\n" +
+            "ct: 4000\r\n" +
+            "rgb: 16711680\r\n" +
+            "name: bedroom\r\n\r\n";
+
+    private final SsdpMessage ssdp = new SsdpMessage();
+
+    private static byte[] ascii(String string) {
+        return string.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private boolean parse(String message) {
+        final byte[] data = ascii(message);
+        return ssdp.parse(data, 0, data.length);
+    }
+
+    @Test
+    public void parsesSearchResponse() throws UnknownHostException {
+        assertTrue(parse(RESPONSE));
+        assertFalse(ssdp.isAnnounce());
+        assertTrue(ssdp.isSameAddress(InetAddress.getByName("192.168.1.239")));
+        assertArrayEquals(new byte[]{(byte) 192, (byte) 168, 1, (byte) 239}, ssdp.getInet().getAddress());
+        assertEquals(55443, ssdp.getPort());
+        assertTrue(ssdp.hasId());
+        assertEquals(0x15243fL, ssdp.getId());
+        assertEquals(3600, ssdp.getMaxAge());
+        assertEquals(18, ssdp.getFirmwareVersion());
+        assertTrue(ssdp.hasPower());
+        assertTrue(ssdp.isPowerOn());
+        assertEquals(100, ssdp.getBright());
+        assertEquals(BulbState.COLOR_MODE_CT, ssdp.getColorMode());
+        assertEquals(4000, ssdp.getColorTemperature());
+        assertEquals(16711680, ssdp.getRgb());
+        assertEquals("color", ssdp.getModel());
+        assertEquals("bedroom", ssdp.getName());
+        assertTrue(ssdp.supports("toggle"));
+        assertTrue(ssdp.supports("set_bright"));
+        assertFalse(ssdp.supports("set"));
+        assertFalse(ssdp.supports("set_rgb"));
+    }
+
+    @Test
+    public void parsesAnnouncement() {
+        assertTrue(parse("NOTIFY * HTTP/1.1\r\nHost: 239.255.255.250:1982\r\nCache-Control: max-age=60\r\n" +
+                "Location: yeelight://10.0.0.2:55443\r\nid: 0x1\r\npower: off\r\n\r\n"));
+        assertTrue(ssdp.isAnnounce());
+        assertEquals(60, ssdp.getMaxAge());
+        assertEquals(1, ssdp.getId());
+        assertTrue(ssdp.hasPower());
+        assertFalse(ssdp.isPowerOn());
+    }
+
+    @Test
+    public void acceptsBareLineFeeds() {
+        assertTrue(parse(RESPONSE.replace("\r\n", "\n")));
+        assertEquals(55443, ssdp.getPort());
+        assertEquals(0x15243fL, ssdp.getId());
+        assertEquals("bedroom", ssdp.getName());
+    }
+
+    @Test
+    public void matchesHeaderNamesIgnoringCase() {
+        assertTrue(parse("HTTP/1.1 200 OK\r\nLOCATION: YEELIGHT://10.0.0.2:55443\r\nCACHE-CONTROL: MAX-AGE=120\r\nID: 0XAB\r\nPower: ON\r\n"));
+        assertEquals(120, ssdp.getMaxAge());
+        assertEquals(0xab, ssdp.getId());
+        assertTrue(ssdp.isPowerOn());
+    }
+
+    @Test
+    public void trimsHeaderWhitespace() {
+        assertTrue(parse("HTTP/1.1 200 OK\r\nLocation :\t yeelight://10.0.0.2:55443 \t\r\nname:   desk lamp  \r\n"));
+        assertEquals(55443, ssdp.getPort());
+        assertEquals("desk lamp", ssdp.getName());
+    }
+
+    @Test
+    public void honoursOffsetAndLength() {
+        final byte[] message = ascii(RESPONSE);
+        final byte[] data = new byte[message.length + 20];
+        Arrays.fill(data, (byte) 'x');
+        System.arraycopy(message, 0, data, 10, message.length);
+        assertTrue(ssdp.parse(data, 10, message.length));
+        assertEquals(0x15243fL, ssdp.getId());
+        assertEquals("bedroom", ssdp.getName());
+    }
+
+    @Test
+    public void ignoresBytesPastLength() {
+        final byte[] data = ascii("HTTP/1.1 200 OK\r\nLocation: yeelight://10.0.0.2:55443\r\nname: desk");
+        assertTrue(ssdp.parse(data, 0, data.length - 2));
+        assertEquals("de", ssdp.getName());
+        // Cut in the middle of the location, the message has no valid location at all
+        assertFalse(ssdp.parse(data, 0, 30));
+    }
+
+    @Test
+    public void rejectsMalformedMessages() {
+        assertFalse(parse(""));
+        assertFalse(parse("garbage"));
+        assertFalse(parse(SsdpMessage.SEARCH_REQUEST));
+        assertFalse(parse("HTTP/1.1 404 Not Found\r\nLocation: yeelight://10.0.0.2:55443\r\n"));
+        assertFalse(parse("http/1.1 200 ok\r\nLocation: yeelight://10.0.0.2:55443\r\n"));
+        assertFalse(parse("HTTP/1.1 200 OK\r\nid: 0x1\r\n"));
+        // Headers after the blank line belong to the body
+        assertFalse(parse("HTTP/1.1 200 OK\r\n\r\nLocation: yeelight://10.0.0.2:55443\r\n"));
+    }
+
+    @Test
+    public void rejectsMalformedLocations() {
+        for (String location : new String[]{
+                "http://10.0.0.2:55443",
+                "yeelight://",
+                "yeelight://10.0.0.2",
+                "yeelight://10.0.0.2:",
+                "yeelight://10.0.0:55443",
+                "yeelight://10.0.0.256:55443",
+                "yeelight://10.0.0.1234:55443",
+                "yeelight://10.0.0.2:0",
+                "yeelight://10.0.0.2:65536",
+                "yeelight://bulb.lan:55443"}) {
+            assertFalse(location, parse("HTTP/1.1 200 OK\r\nLocation: " + location + "\r\n"));
+        }
+    }
+
+    @Test
+    public void keepsDefaultsForMissingOrInvalidValues() {
+        assertTrue(parse("HTTP/1.1 200 OK\r\nLocation: yeelight://10.0.0.2:55443\r\nCache-Control: no-cache\r\n" +
+                "id: 0xnothex\r\nbright: high\r\nct: 99999999999\r\n"));
+        assertEquals(SsdpMessage.DEFAULT_MAX_AGE, ssdp.getMaxAge());
+        assertFalse(ssdp.hasId());
+        assertFalse(ssdp.hasPower());
+        assertEquals(SsdpMessage.UNKNOWN, ssdp.getBright());
+        assertEquals(SsdpMessage.UNKNOWN, ssdp.getColorMode());
+        assertEquals(SsdpMessage.UNKNOWN, ssdp.getColorTemperature());
+        assertEquals(SsdpMessage.UNKNOWN, ssdp.getFirmwareVersion());
+        assertNull(ssdp.getModel());
+        assertNull(ssdp.getName());
+    }
+
+    @Test
+    public void rejectsIdsLongerThanSixtyFourBits() {
+        assertTrue(parse("HTTP/1.1 200 OK\r\nLocation: yeelight://10.0.0.2:55443\r\nid: 0xffffffffffffffff\r\n"));
+        assertTrue(ssdp.hasId());
+        assertEquals(-1L, ssdp.getId());
+        assertTrue(parse("HTTP/1.1 200 OK\r\nLocation: yeelight://10.0.0.2:55443\r\nid: 0x1ffffffffffffffff\r\n"));
+        assertFalse(ssdp.hasId());
+    }
+
+    @Test
+    public void resetsBetweenMessages() {
+        assertTrue(parse(RESPONSE));
+        assertTrue(parse("HTTP/1.1 200 OK\r\nLocation: yeelight://10.0.0.2:1234\r\n"));
+        assertEquals(1234, ssdp.getPort());
+        assertFalse(ssdp.hasId());
+        assertFalse(ssdp.hasPower());
+        assertNull(ssdp.getName());
+        assertFalse(ssdp.supports("toggle"));
+    }
+
+    @Test
+    public void formatsIdsLikeBulbs() {
+        assertEquals("0x000000000015243f", SsdpMessage.formatId(0x15243fL));
+        assertEquals("0xffffffffffffffff", SsdpMessage.formatId(-1L));
+    }
+
+}